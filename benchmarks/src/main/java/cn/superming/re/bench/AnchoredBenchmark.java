@@ -0,0 +1,66 @@
+package cn.superming.re.bench;
+
+import cn.superming.re.Pattern;
+import cn.superming.re.Regex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 带 ^ 或 $ 的子串匹配(match), 每个文本中只有一个匹配, 但需要扫描整个文本才能确定
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AnchoredBenchmark {
+    @Param({"caret", "dollar", "both"})
+    public String anchor;
+
+    @Param({"64", "1048576"})
+    public int length;
+
+    private String text;
+    private Pattern dfa;
+    private Pattern pikeVm;
+    private java.util.regex.Pattern jdk;
+
+    @Setup
+    public void setup(){
+        String regex;
+        String body = Inputs.random("cd", length - 4);
+        if ("caret".equals(anchor)){
+            regex = "^ab[cd]*e";
+            text = "ab" + body + "ef";
+        } else if ("dollar".equals(anchor)){
+            regex = "x[cd]*e$";
+            text = body + "xcde";
+        } else {
+            regex = "^ab[cd]*e$";
+            text = "ab" + body + "ce";
+        }
+        dfa = Regex.compile(regex);
+        pikeVm = Regex.compile(regex, Regex.PIKE_VM);
+        jdk = java.util.regex.Pattern.compile(regex);
+        if (dfa.match(text).length != 1){
+            throw new IllegalStateException("输入文本中应当恰好有一个匹配: " + regex);
+        }
+    }
+
+    @Benchmark
+    public String[] dfa(){
+        return dfa.match(text);
+    }
+
+    @Benchmark
+    public String[] pikeVm(){
+        return pikeVm.match(text);
+    }
+
+    @Benchmark
+    public boolean jdk(){
+        return jdk.matcher(text).find();
+    }
+}
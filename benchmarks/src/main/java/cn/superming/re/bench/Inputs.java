@@ -0,0 +1,43 @@
+package cn.superming.re.bench;
+
+import java.util.Random;
+
+/**
+ * 生成基准测试用的输入文本, 使用固定的随机种子保证每次运行的输入相同
+ */
+final class Inputs {
+    private static final long SEED = 20200707L;
+
+    private Inputs(){
+    }
+
+    /**
+     * 重复unit直到长度达到length
+     * @param unit
+     * @param length
+     * @return
+     */
+    static String repeat(String unit, int length){
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length){
+            sb.append(unit);
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    /**
+     * 由alphabet中的字符随机组成的文本
+     * @param alphabet
+     * @param length
+     * @return
+     */
+    static String random(String alphabet, int length){
+        Random random = new Random(SEED);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+        }
+        return new String(chars);
+    }
+}
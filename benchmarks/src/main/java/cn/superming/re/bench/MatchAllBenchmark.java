@@ -0,0 +1,69 @@
+package cn.superming.re.bench;
+
+import cn.superming.re.Pattern;
+import cn.superming.re.Regex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 整串匹配(matchAll): 文本整体都能被接收, 状态机需要扫描完整个文本.
+ * java.util.regex对分组的重复是递归匹配的, alternation在MB级输入上会StackOverflowError,
+ * JMH把这一组合记为失败, 这本身也是对照结果的一部分.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatchAllBenchmark {
+    @Param({"alternation", "charset"})
+    public String shape;
+
+    @Param({"64", "1048576"})
+    public int length;
+
+    private String regex;
+    private String text;
+    private Pattern dfa;
+    private Pattern pikeVm;
+    private java.util.regex.Pattern jdk;
+
+    @Setup
+    public void setup(){
+        if ("alternation".equals(shape)){
+            regex = "(ab|cd)*ef";
+            text = Inputs.repeat("abcd", length - 2) + "ef";
+        } else {
+            regex = "[a-z0-9_]+@[a-z0-9]+";
+            text = Inputs.random("abcdefghijklmnopqrstuvwxyz0123456789_", length - 8) + "@example";
+        }
+        dfa = Regex.compile(regex);
+        pikeVm = Regex.compile(regex, Regex.PIKE_VM);
+        jdk = java.util.regex.Pattern.compile(regex);
+        if (!dfa.matchAll(text)){
+            throw new IllegalStateException("输入文本应当能被完整匹配: " + regex);
+        }
+    }
+
+    @Benchmark
+    public boolean regexFacade(){
+        return new Regex().matchAll(regex, text);
+    }
+
+    @Benchmark
+    public boolean dfa(){
+        return dfa.matchAll(text);
+    }
+
+    @Benchmark
+    public boolean pikeVm(){
+        return pikeVm.matchAll(text);
+    }
+
+    @Benchmark
+    public boolean jdk(){
+        return jdk.matcher(text).matches();
+    }
+}
@@ -0,0 +1,65 @@
+package cn.superming.re.bench;
+
+import cn.superming.re.Pattern;
+import cn.superming.re.Regex;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 子串匹配(match): 找出文本中所有能被接收的子串.
+ * java.util.regex没有"所有子串"的语义, 对照组使用find循环, 只作为量级上的参考.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatchBenchmark {
+    @Param({"literal", "charset"})
+    public String shape;
+
+    @Param({"64", "1048576"})
+    public int length;
+
+    private String text;
+    private Pattern dfa;
+    private Pattern pikeVm;
+    private java.util.regex.Pattern jdk;
+
+    @Setup
+    public void setup(){
+        String regex;
+        if ("literal".equals(shape)){
+            regex = "needle(s|d)";
+            text = Inputs.random("abcdefghijklmnopqrstuvwxyz ", length);
+            text = text.substring(0, length / 2) + "needles" + text.substring(length / 2 + 7);
+        } else {
+            regex = "[0-9][0-9]?[0-9]?\\.[0-9][0-9]?[0-9]?";
+            text = Inputs.random("abcdefghij0123456789. ", length);
+        }
+        dfa = Regex.compile(regex);
+        pikeVm = Regex.compile(regex, Regex.PIKE_VM);
+        jdk = java.util.regex.Pattern.compile(regex);
+    }
+
+    @Benchmark
+    public String[] dfa(){
+        return dfa.match(text);
+    }
+
+    @Benchmark
+    public String[] pikeVm(){
+        return pikeVm.match(text);
+    }
+
+    @Benchmark
+    public void jdk(Blackhole blackhole){
+        java.util.regex.Matcher matcher = jdk.matcher(text);
+        while (matcher.find()){
+            blackhole.consume(matcher.group());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package cn.superming.re.bench;
+
+import cn.superming.re.ParallelMatcher;
+import cn.superming.re.Pattern;
+import cn.superming.re.Regex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分块并行查找(ParallelMatcher)与顺序查找(count)的对照.
+ * 文本中没有匹配, 每一块都只应扫描自己的部分, 块数增加时总的工作量不应随之成倍增长.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelBenchmark {
+    @Param({"prefix", "charset"})
+    public String shape;
+
+    @Param({"1048576", "16777216"})
+    public int length;
+
+    @Param({"4", "48"})
+    public int threads;
+
+    private String text;
+    private Pattern pattern;
+    private ForkJoinPool pool;
+    private ParallelMatcher parallel;
+
+    @Setup
+    public void setup(){
+        String regex = "prefix".equals(shape) ? "foo[0-9]+" : "[0-9]+x";
+        text = Inputs.random("abcdeghijklmnopqrstuvwyz0123456789 ", length);    // 不含f和x, 两个正则都没有匹配
+        pattern = Regex.compile(regex);
+        pool = new ForkJoinPool(threads);
+        parallel = new ParallelMatcher(pattern, pool);
+        if (pattern.count(text) != 0 || parallel.count(text) != 0){
+            throw new IllegalStateException("输入文本中不应有匹配: " + regex);
+        }
+    }
+
+    @TearDown
+    public void tearDown(){
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int sequential(){
+        return pattern.count(text);
+    }
+
+    @Benchmark
+    public int parallel(){
+        return parallel.count(text);
+    }
+}
@@ -0,0 +1,53 @@
+package cn.superming.re.bench;
+
+import cn.superming.re.Pattern;
+import cn.superming.re.Regex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使回溯引擎退化为指数时间的正则表达式, 文本都不能被接收.
+ * 基于自动机的实现耗时只与文本长度成线性关系.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PathologicalBenchmark {
+    @Param({"(a|aa)*b", "(a+a+)+b"})
+    public String regex;
+
+    @Param({"16", "24", "28"})
+    public int length;
+
+    private String text;
+    private Pattern dfa;
+    private Pattern pikeVm;
+    private java.util.regex.Pattern jdk;
+
+    @Setup
+    public void setup(){
+        text = Inputs.repeat("a", length);
+        dfa = Regex.compile(regex);
+        pikeVm = Regex.compile(regex, Regex.PIKE_VM);
+        jdk = java.util.regex.Pattern.compile(regex);
+    }
+
+    @Benchmark
+    public boolean dfa(){
+        return dfa.matchAll(text);
+    }
+
+    @Benchmark
+    public boolean pikeVm(){
+        return pikeVm.matchAll(text);
+    }
+
+    @Benchmark
+    public boolean jdk(){
+        return jdk.matcher(text).matches();
+    }
+}
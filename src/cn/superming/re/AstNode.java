@@ -0,0 +1,118 @@
+package cn.superming.re;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 正则表达式的语法树
+ * 由Parser从Lexer的词法单元构建, 经过AstOptimizer化简之后再由NFAConstructor构建NFA.
+ * 单个字符、 . 和 [...] 都是字符集叶子, 大小写和取反在解析时已经展开; 非捕获分组不单独成为结点.
+ * 结点创建之后不再修改, 化简时总是创建新的结点.
+ */
+final class AstNode {
+    // 结点类型
+    static final int CHARSET = 0;       // 接收set中的一个字符
+    static final int EMPTY = 1;         // 空串, 只在化简时产生
+    static final int CONCAT = 2;        // 依次连接children
+    static final int ALTERNATE = 3;     // children中的任意一个, 前面的分支优先
+    static final int STAR = 4;          // children[0]*
+    static final int PLUS = 5;          // children[0]+
+    static final int OPT = 6;           // children[0]?
+    static final int GROUP = 7;         // 捕获分组, 编号为group
+
+    private static final AstNode[] NO_CHILDREN = new AstNode[0];
+    private static final AstNode EMPTY_NODE = new AstNode(EMPTY, null, NO_CHILDREN, 0);
+
+    final int kind;
+    final int[] set;            // CHARSET: 有序的闭区间, 端点成对存放; 为空数组时不接收任何字符
+    final AstNode[] children;
+    final int group;            // GROUP: 分组编号
+    final boolean capturing;    // 子树中是否有捕获分组
+
+    private AstNode(int kind, int[] set, AstNode[] children, int group){
+        this.kind = kind;
+        this.set = set;
+        this.children = children;
+        this.group = group;
+        boolean capturing = kind == GROUP;
+        for (AstNode child : children) {
+            capturing |= child.capturing;
+        }
+        this.capturing = capturing;
+    }
+
+    static AstNode charset(int[] set){
+        return new AstNode(CHARSET, set, NO_CHILDREN, 0);
+    }
+
+    static AstNode empty(){
+        return EMPTY_NODE;
+    }
+
+    static AstNode concat(List<AstNode> children){
+        return new AstNode(CONCAT, null, children.toArray(NO_CHILDREN), 0);
+    }
+
+    static AstNode alternate(List<AstNode> children){
+        return new AstNode(ALTERNATE, null, children.toArray(NO_CHILDREN), 0);
+    }
+
+    /**
+     * @param kind STAR、PLUS或OPT
+     * @param child
+     * @return
+     */
+    static AstNode repeat(int kind, AstNode child){
+        return new AstNode(kind, null, new AstNode[]{child}, 0);
+    }
+
+    static AstNode group(int group, AstNode child){
+        return new AstNode(GROUP, null, new AstNode[]{child}, group);
+    }
+
+    /**
+     * @return 是否不接收任何字符串
+     */
+    boolean isDead(){
+        switch (kind){
+            case CHARSET:
+                return set.length == 0;
+            case CONCAT:
+            case PLUS:
+            case GROUP:
+                for (AstNode child : children) {
+                    if (child.isDead()){
+                        return true;
+                    }
+                }
+                return false;
+            case ALTERNATE:
+                for (AstNode child : children) {
+                    if (!child.isDead()){
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 判断两棵子树的结构是否完全相同
+     * @param other
+     * @return
+     */
+    boolean sameAs(AstNode other){
+        if (kind != other.kind || group != other.group || children.length != other.children.length
+                || (kind == CHARSET && !Arrays.equals(set, other.set))){
+            return false;
+        }
+        for (int i = 0; i < children.length; i++) {
+            if (!children[i].sameAs(other.children[i])){
+                return false;
+            }
+        }
+        return true;
+    }
+}
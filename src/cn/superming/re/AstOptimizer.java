@@ -0,0 +1,215 @@
+package cn.superming.re;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 语法树化简
+ * 在构建NFA之前自底向上化简语法树, 接收的语言不变, NFA的结点更少:
+ *   合并字符集: 相邻的字符集分支合并成一个, a|b|c 变成 [abc]
+ *   提取公共前缀: 以相同字符集开头的相邻分支共用前缀, abc|abd 变成 ab[cd], a|ab 变成 a(?:|b)
+ *   规范化量词: 直接嵌套的量词只保留一个, (?:x*)* (?:x+)* (?:x?)+ 都变成 x*, (?:x+)+ 变成 x+
+ *   去掉死分支: 不接收任何字符的分支(如取反后为空的字符集)和与前面的分支完全相同的分支
+ * 嵌套的连接和分支展开成一层.
+ *
+ * 这些变换都不改变NFA模拟时各条路径的优先顺序, 所以捕获分组的结果也不变:
+ * 只合并相邻的分支, 只提取单个字符集作为前缀, 量词的化简和去掉分支只用于不含捕获分组的子树.
+ */
+final class AstOptimizer {
+    private AstOptimizer(){
+    }
+
+    /**
+     * 化简语法树
+     * @param node
+     * @return 化简后的语法树, 可能是EMPTY或者不接收任何字符的字符集
+     */
+    static AstNode optimize(AstNode node){
+        switch (node.kind){
+            case AstNode.CHARSET:
+            case AstNode.EMPTY:
+                return node;
+            case AstNode.CONCAT:
+                return concat(optimizeAll(node.children));
+            case AstNode.ALTERNATE:
+                return alternate(optimizeAll(node.children));
+            case AstNode.GROUP:
+                return AstNode.group(node.group, optimize(node.children[0]));
+            default:
+                return repeat(node.kind, optimize(node.children[0]));
+        }
+    }
+
+    private static List<AstNode> optimizeAll(AstNode[] nodes){
+        List<AstNode> result = new ArrayList<>(nodes.length);
+        for (AstNode node : nodes) {
+            result.add(optimize(node));
+        }
+        return result;
+    }
+
+    private static AstNode dead(){
+        return AstNode.charset(new int[0]);
+    }
+
+    /**
+     * 连接已经化简的items: 展开嵌套的连接, 去掉空串, 不含分组且有一项不接收任何字符时整体也不接收
+     * @param items
+     * @return
+     */
+    private static AstNode concat(List<AstNode> items){
+        List<AstNode> result = new ArrayList<>(items.size());
+        for (AstNode item : items) {
+            if (item.kind == AstNode.CONCAT){
+                result.addAll(Arrays.asList(item.children));
+            } else if (item.kind != AstNode.EMPTY){
+                result.add(item);
+            }
+        }
+        if (result.isEmpty()){
+            return AstNode.empty();
+        }
+        if (result.size() == 1){
+            return result.get(0);
+        }
+        AstNode node = AstNode.concat(result);
+        return !node.capturing && node.isDead() ? dead() : node;
+    }
+
+    /**
+     * 并联已经化简的branches
+     * @param branches
+     * @return
+     */
+    private static AstNode alternate(List<AstNode> branches){
+        List<AstNode> kept = new ArrayList<>(branches.size());
+        for (AstNode branch : branches) {
+            if (branch.kind == AstNode.ALTERNATE){
+                for (AstNode child : branch.children) {
+                    keep(kept, child);
+                }
+            } else {
+                keep(kept, branch);
+            }
+        }
+        if (kept.isEmpty()){
+            return dead();
+        }
+
+        List<AstNode> result = new ArrayList<>(kept.size());
+        for (int i = 0; i < kept.size(); ) {
+            int end = i + 1;
+            AstNode head = head(kept.get(i));
+            if (kept.get(i).kind == AstNode.CHARSET && end < kept.size() && kept.get(end).kind == AstNode.CHARSET){
+                while (end < kept.size() && kept.get(end).kind == AstNode.CHARSET){
+                    end++;
+                }
+                result.add(union(kept.subList(i, end)));
+            } else if (head != null){
+                while (end < kept.size() && head(kept.get(end)) != null && head(kept.get(end)).sameAs(head)){
+                    end++;
+                }
+                result.add(end - i == 1 ? kept.get(i) : factor(head, kept.subList(i, end)));
+            } else {
+                result.add(kept.get(i));
+            }
+            i = end;
+        }
+        return result.size() == 1 ? result.get(0) : AstNode.alternate(result);
+    }
+
+    /**
+     * 加入一个分支, 去掉不含分组的死分支, 以及与已有分支完全相同的分支(优先级更低, 永远不会被选中)
+     * @param kept
+     * @param branch
+     */
+    private static void keep(List<AstNode> kept, AstNode branch){
+        if (!branch.capturing){
+            if (branch.isDead()){
+                return;
+            }
+            for (AstNode other : kept) {
+                if (other.sameAs(branch)){
+                    return;
+                }
+            }
+        }
+        kept.add(branch);
+    }
+
+    /**
+     * @param branch
+     * @return 分支开头的字符集, 不以字符集开头时返回空
+     */
+    private static AstNode head(AstNode branch){
+        if (branch.kind == AstNode.CHARSET){
+            return branch;
+        }
+        if (branch.kind == AstNode.CONCAT && branch.children[0].kind == AstNode.CHARSET){
+            return branch.children[0];
+        }
+        return null;
+    }
+
+    /**
+     * 把相邻的字符集分支合并成一个字符集
+     * @param branches
+     * @return
+     */
+    private static AstNode union(List<AstNode> branches){
+        CharRanges set = new CharRanges();
+        for (AstNode branch : branches) {
+            for (int k = 0; k < branch.set.length; k += 2) {
+                set.add(branch.set[k], branch.set[k + 1]);
+            }
+        }
+        return AstNode.charset(set.toArray());
+    }
+
+    /**
+     * 提取相邻分支共同的开头字符集: 剩余部分按原来的顺序并联, 只有开头的分支剩下空串
+     * @param head
+     * @param branches 都以head开头
+     * @return
+     */
+    private static AstNode factor(AstNode head, List<AstNode> branches){
+        List<AstNode> rests = new ArrayList<>(branches.size());
+        for (AstNode branch : branches) {
+            if (branch.kind == AstNode.CHARSET){
+                rests.add(AstNode.empty());
+            } else {
+                rests.add(concat(Arrays.asList(branch.children).subList(1, branch.children.length)));
+            }
+        }
+        List<AstNode> items = new ArrayList<>(2);
+        items.add(head);
+        items.add(alternate(rests));
+        return concat(items);
+    }
+
+    /**
+     * 为已经化简的child加上量词
+     * @param kind STAR、PLUS或OPT
+     * @param child
+     * @return
+     */
+    private static AstNode repeat(int kind, AstNode child){
+        if (child.kind == AstNode.EMPTY){
+            return child;
+        }
+        if (child.capturing){
+            return AstNode.repeat(kind, child);
+        }
+        if (child.isDead()){
+            return kind == AstNode.PLUS ? child : AstNode.empty();     // 只能重复0次
+        }
+        if (child.kind == AstNode.STAR || child.kind == AstNode.PLUS || child.kind == AstNode.OPT){
+            if (child.kind == kind){
+                return child;
+            }
+            return AstNode.repeat(AstNode.STAR, child.children[0]);   // 其余的组合都可以重复任意次, 包括0次
+        }
+        return AstNode.repeat(kind, child);
+    }
+}
@@ -0,0 +1,83 @@
+package cn.superming.re;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 把ByteBuffer中的一段字节当作字符序列, 每个字节对应一个字符(ISO-8859-1).
+ * 不复制字节, 只有调用toString时才会生成字符串. 可以用wrap指向另一段字节以便复用.
+ * UTF8模式的状态机边上都是字节, 直接在这个序列上运行即可匹配UTF-8字节.
+ */
+final class ByteSequence implements CharSequence {
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+    ByteSequence(ByteBuffer buffer, int offset, int length){
+        wrap(buffer, offset, length);
+    }
+
+    /**
+     * 指向buffer中从offset开始的length个字节
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return
+     */
+    ByteSequence wrap(ByteBuffer buffer, int offset, int length){
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * 指向另一个字节序列中[start, end)的字节
+     * @param source
+     * @param start
+     * @param end
+     * @return
+     */
+    ByteSequence slice(ByteSequence source, int start, int end){
+        return wrap(source.buffer, source.offset + start, end - start);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buffer.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new ByteSequence(buffer, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return toString(0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 按charset解码[start, end)中的字节
+     * @param start
+     * @param end
+     * @param charset
+     * @return
+     */
+    String toString(int start, int end, Charset charset){
+        if (buffer.hasArray()){
+            return new String(buffer.array(), buffer.arrayOffset() + offset + start, end - start, charset);
+        }
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + start + i);
+        }
+        return new String(bytes, charset);
+    }
+}
@@ -0,0 +1,149 @@
+package cn.superming.re;
+
+import java.util.Arrays;
+
+/**
+ * 求捕获分组位置的NFA模拟(带标记的Pike VM)
+ * 每个线程除了所在的结点之外还带着一组槽, 经过分组起止的空转移结点时把当前位置写入对应的槽.
+ * 线程按优先级排列: 空转移结点先走第一条出边, 所以 | 优先左边的分支, * + ? 优先多重复一次;
+ * 同一个结点只保留最先到达(优先级最高)的线程, 每读入一个字符的时间与NFA的结点数成正比, 总时间为O(n·m).
+ *
+ * 匹配的整体区间仍由Matcher按最左最长的语义求出, 这里只在该区间上做一次锚定的模拟,
+ * 在所有恰好匹配整个区间的路径中取优先级最高的一条, 分组在重复中匹配多次时记录最后一次.
+ * 不是线程安全的, 每个Matcher持有自己的一个.
+ */
+final class CaptureMatcher {
+    private final Program program;
+    private final boolean utf8;         // 状态机是否按UTF-8字节构建
+    private final int slots;            // 每个线程的槽数, 即 2 * (分组个数 + 1)
+    private SparseSet clist;            // 当前线程所在的结点
+    private SparseSet nlist;
+    private int[] ccaps;                // clist中第k个线程的槽存放在[k * slots, (k + 1) * slots)
+    private int[] ncaps;
+    private final int[] caps;           // 求闭包时正在经过的路径上的槽
+    private final int[] stack;          // 求闭包用的显式栈, 非负数是结点, 负数表示恢复一个槽
+    private final int[] restore;        // 恢复槽时写回的值, 下标与stack一致
+    private Utf8Text utf8Text;          // UTF8模式下编码字符序列时复用
+
+    CaptureMatcher(Program program, boolean utf8){
+        this.program = program;
+        this.utf8 = utf8;
+        this.slots = 2 * (program.groupCount + 1);
+        clist = new SparseSet(program.size());
+        nlist = new SparseSet(program.size());
+        ccaps = new int[program.size() * slots];
+        ncaps = new int[program.size() * slots];
+        caps = new int[slots];
+        stack = new int[program.size() * 3 + 1];    // 每条边最多压栈一次, 每个带槽的结点再压一次恢复
+        restore = new int[stack.length];
+    }
+
+    /**
+     * 求[start, end)这个匹配中各分组的位置
+     * @param text 匹配所在的序列, UTF8模式下可以是字符序列(偏移是字符下标)或字节序列(偏移是字节偏移)
+     * @param start 匹配的起点
+     * @param end 匹配的终点
+     * @param groups 写入分组n的起点和终点到[2n]和[2n + 1], 分组0是整个匹配, 没有参与匹配的分组为-1
+     */
+    void capture(CharSequence text, int start, int end, int[] groups){
+        Arrays.fill(groups, 0, slots, -1);
+        if (utf8 && !(text instanceof ByteSequence)){      // 只编码匹配到的部分, 再把字节偏移换算回字符下标
+            Utf8Text encoded = utf8Text();
+            ByteSequence sequence = encoded.encode(text.subSequence(start, end));
+            simulate(sequence, 0, sequence.length(), groups);
+            for (int i = 2; i < slots; i++) {
+                if (groups[i] >= 0){
+                    groups[i] = start + encoded.toCharIndex(groups[i]);
+                }
+            }
+        } else {
+            simulate(text, start, end, groups);
+        }
+        groups[0] = start;
+        groups[1] = end;
+    }
+
+    /**
+     * 从start开始锚定模拟到end, 把在end处处于接收状态的优先级最高的线程的槽写入groups
+     * @param text
+     * @param start
+     * @param end
+     * @param groups
+     */
+    private void simulate(CharSequence text, int start, int end, int[] groups){
+        clist.clear();
+        Arrays.fill(caps, -1);
+        addThread(clist, ccaps, program.start, start);
+
+        for (int i = start; i < end && !clist.isEmpty(); i++) {
+            char c = text.charAt(i);
+            nlist.clear();
+            for (int k = 0; k < clist.size(); k++) {    // 按优先级从高到低, 先加入的线程占住结点
+                int pc = clist.get(k);
+                if (program.accepts(pc, c)){
+                    System.arraycopy(ccaps, k * slots, caps, 0, slots);
+                    addThread(nlist, ncaps, program.out[pc], i + 1);
+                }
+            }
+            SparseSet tmp = clist;
+            clist = nlist;
+            nlist = tmp;
+            int[] tmpCaps = ccaps;
+            ccaps = ncaps;
+            ncaps = tmpCaps;
+        }
+
+        for (int k = 0; k < clist.size(); k++) {
+            if (program.opcode[clist.get(k)] == Program.MATCH){
+                System.arraycopy(ccaps, k * slots, groups, 0, slots);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 把结点pc及其epsilon闭包按优先级顺序加入集合, 经过带槽的结点时记录位置, 这条路径走完后再恢复
+     * @param list 状态集合
+     * @param listCaps 集合中每个线程的槽
+     * @param pc 结点编号
+     * @param position 当前位置
+     */
+    private void addThread(SparseSet list, int[] listCaps, int pc, int position){
+        int top = 0;
+        stack[top++] = pc;
+        while (top > 0){
+            pc = stack[--top];
+            if (pc < 0){                    // 这个槽所在的分支都已经走完
+                caps[-pc - 1] = restore[top];
+                continue;
+            }
+            if (list.contains(pc)){
+                continue;
+            }
+            list.add(pc);
+            if (program.opcode[pc] != Program.EPSILON){
+                System.arraycopy(caps, 0, listCaps, (list.size() - 1) * slots, slots);
+                continue;
+            }
+            int slot = program.slot[pc];
+            if (slot != Program.NONE){
+                restore[top] = caps[slot];
+                stack[top++] = -slot - 1;
+                caps[slot] = position;
+            }
+            if (program.out2[pc] != Program.NONE){
+                stack[top++] = program.out2[pc];
+            }
+            if (program.out[pc] != Program.NONE){
+                stack[top++] = program.out[pc];
+            }
+        }
+    }
+
+    private Utf8Text utf8Text(){
+        if (utf8Text == null){
+            utf8Text = new Utf8Text();
+        }
+        return utf8Text;
+    }
+}
@@ -0,0 +1,190 @@
+package cn.superming.re;
+
+import java.util.Arrays;
+
+/**
+ * 字符区间集合
+ * 以若干个闭区间[lo, hi]表示一个字符集, 支持取反和补全大小写, 可以表示任意Unicode码点.
+ * 构建字符集时使用, 结果由Program转换成ASCII位图和非ASCII区间.
+ */
+final class CharRanges {
+    static final int MAX_CHAR = Character.MAX_VALUE;            // UTF-16模式下字符的最大值
+    static final int MAX_CODE_POINT = Character.MAX_CODE_POINT; // UTF-8模式下码点的最大值
+
+    private int[] ranges = new int[8];  // 成对存放的区间端点, 未排序, 可能重叠
+    private int size;                   // 区间个数
+    private boolean normalized = true;  // 是否已经排序并合并
+
+    /**
+     * 加入一个字符
+     * @param c
+     */
+    void add(int c){
+        add(c, c);
+    }
+
+    /**
+     * 加入闭区间[lo, hi]
+     * @param lo
+     * @param hi
+     */
+    void add(int lo, int hi){
+        if (lo > hi){
+            return;
+        }
+        if (size * 2 == ranges.length){
+            ranges = Arrays.copyOf(ranges, ranges.length * 2);
+        }
+        ranges[size * 2] = lo;
+        ranges[size * 2 + 1] = hi;
+        size++;
+        normalized = false;
+    }
+
+    boolean isEmpty(){
+        return size == 0;
+    }
+
+    /**
+     * 清空集合以便复用
+     */
+    void clear(){
+        size = 0;
+        normalized = true;
+    }
+
+    /**
+     * @return 集合是否只包含一个字符
+     */
+    boolean isSingle(){
+        normalize();
+        return size == 1 && ranges[0] == ranges[1];
+    }
+
+    /**
+     * 把每个字母的其他大小写形式也加入集合
+     */
+    void addCaseVariants(){
+        normalize();
+        int count = size;
+        for (int i = 0; i < count; i++) {
+            int lo = ranges[i * 2];
+            int hi = ranges[i * 2 + 1];
+            for (int c = lo; c <= hi; c++) {
+                int lower = Character.toLowerCase(c);
+                int upper = Character.toUpperCase(c);
+                if (lower != c){
+                    add(lower);
+                }
+                if (upper != c){
+                    add(upper);
+                }
+                if (upper != c && Character.toLowerCase(upper) != c){   // 如 K 与开尔文符号
+                    add(Character.toLowerCase(upper));
+                }
+            }
+        }
+        normalize();
+    }
+
+    /**
+     * 取反: 得到[0, max]中不在集合里的字符
+     * @param max 字符的最大值
+     */
+    void negate(int max){
+        normalize();
+        int[] negated = new int[(size + 1) * 2];
+        int count = 0;
+        int next = 0;
+        for (int i = 0; i < size; i++) {
+            if (ranges[i * 2] > next){
+                negated[count * 2] = next;
+                negated[count * 2 + 1] = ranges[i * 2] - 1;
+                count++;
+            }
+            next = ranges[i * 2 + 1] + 1;
+        }
+        if (next <= max){
+            negated[count * 2] = next;
+            negated[count * 2 + 1] = max;
+            count++;
+        }
+        ranges = negated;
+        size = count;
+    }
+
+    /**
+     * 去掉闭区间[lo, hi]中的字符
+     * @param lo
+     * @param hi
+     */
+    void remove(int lo, int hi){
+        normalize();
+        int[] result = new int[(size + 1) * 2];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int from = ranges[i * 2];
+            int to = ranges[i * 2 + 1];
+            if (to < lo || from > hi){
+                result[count * 2] = from;
+                result[count * 2 + 1] = to;
+                count++;
+                continue;
+            }
+            if (from < lo){
+                result[count * 2] = from;
+                result[count * 2 + 1] = lo - 1;
+                count++;
+            }
+            if (to > hi){
+                result[count * 2] = hi + 1;
+                result[count * 2 + 1] = to;
+                count++;
+            }
+        }
+        ranges = result;
+        size = count;
+    }
+
+    /**
+     * @return 集合中最大的字符, 集合为空时返回-1
+     */
+    int max(){
+        normalize();
+        return size == 0 ? -1 : ranges[size * 2 - 1];
+    }
+
+    /**
+     * 排序并合并重叠或相邻的区间
+     * @return 成对存放的区间端点, 从小到大排列
+     */
+    int[] toArray(){
+        normalize();
+        return Arrays.copyOf(ranges, size * 2);
+    }
+
+    private void normalize(){
+        if (normalized){
+            return;
+        }
+        long[] packed = new long[size];
+        for (int i = 0; i < size; i++) {
+            packed[i] = ((long) ranges[i * 2] << 32) | ranges[i * 2 + 1];
+        }
+        Arrays.sort(packed);
+        int count = 0;
+        for (long range : packed) {
+            int lo = (int) (range >>> 32);
+            int hi = (int) range;
+            if (count > 0 && lo <= ranges[count * 2 - 1] + 1){
+                ranges[count * 2 - 1] = Math.max(ranges[count * 2 - 1], hi);
+            } else {
+                ranges[count * 2] = lo;
+                ranges[count * 2 + 1] = hi;
+                count++;
+            }
+        }
+        size = count;
+        normalized = true;
+    }
+}
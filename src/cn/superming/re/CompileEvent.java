@@ -0,0 +1,50 @@
+package cn.superming.re;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR事件: 编译时间超过阈值的正则表达式
+ * 调用方先检查 enabled(), 没有记录打开这个事件时不创建事件对象, 不依赖JIT消除.
+ * 阈值可以在JFR配置中通过 cn.superming.re.Compile#threshold 修改
+ */
+@Name("cn.superming.re.Compile")
+@Label("Regex Compile")
+@Category("Regex")
+@Description("编译时间超过阈值的正则表达式")
+@Threshold("10 ms")
+@StackTrace(true)
+final class CompileEvent extends jdk.jfr.Event {
+    private static volatile EventType type;    // JFR初始化之后第一次检查时才取得, 取得EventType本身会初始化JFR
+
+    /**
+     * 判断是否有记录打开了这个事件, 每次编译前调用. JFR没有初始化时只读一个静态字段
+     * @return
+     */
+    static boolean enabled(){
+        if (!FlightRecorder.isInitialized()){
+            return false;
+        }
+        EventType result = type;
+        if (result == null){
+            result = EventType.getEventType(CompileEvent.class);
+            type = result;
+        }
+        return result.isEnabled();
+    }
+
+    @Label("Pattern")
+    String pattern;
+
+    @Label("Flags")
+    int flags;
+
+    @Label("NFA States")
+    int nfaStates;
+}
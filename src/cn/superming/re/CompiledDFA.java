@@ -0,0 +1,42 @@
+package cn.superming.re;
+
+/**
+ * 编译成字节码的DFA
+ * 由DFACompiler为一个Pattern生成子类, 每个DFA状态是switch中的一个分支, 分支内用比较指令判断字符
+ * 落在哪个区间并直接跳到下一个状态, 不查转移表, JIT可以把整个扫描循环内联和展开.
+ * 语义与对应的DFA扫描循环相同: 锚定方法使用锚定DFA, 其余使用非锚定DFA, 都只接收非空匹配.
+ */
+abstract class CompiledDFA {
+
+    /**
+     * 锚定DFA从from读到text末尾后是否处于接收状态
+     * @param text
+     * @param from
+     * @return
+     */
+    abstract boolean matchToEnd(CharSequence text, int from);
+
+    /**
+     * 锚定DFA从from开始是否接收某个非空前缀
+     * @param text
+     * @param from
+     * @return
+     */
+    abstract boolean matchPrefix(CharSequence text, int from);
+
+    /**
+     * 非锚定DFA: 是否有起点不小于from的非空匹配在text末尾结束
+     * @param text
+     * @param from
+     * @return
+     */
+    abstract boolean containsToEnd(CharSequence text, int from);
+
+    /**
+     * 非锚定DFA: 是否有起点不小于from的非空匹配
+     * @param text
+     * @param from
+     * @return
+     */
+    abstract boolean contains(CharSequence text, int from);
+}
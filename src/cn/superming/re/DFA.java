@@ -0,0 +1,45 @@
+package cn.superming.re;
+
+/**
+ * 确定有限状态机
+ * 状态编码为 (状态编号 << 1) | 是否接收, 编号1为死状态, 所以 DEAD 和 isAccepting 对所有实现通用.
+ * 惰性构建的LazyDFA在首次遇到新状态时才计算转移; DenseDFA是预先完全确定化并最小化的转移表.
+ */
+abstract class DFA {
+
+    /**
+     * @return 开始状态(已编码)
+     */
+    abstract int start();
+
+    /**
+     * DFA的状态转移函数
+     * @param state 当前状态(已编码)
+     * @param c 输入字符
+     * @return 跳转状态(已编码), 或者 LazyDFA.FAILED
+     */
+    abstract int next(int state, char c);
+
+    /**
+     * 估算占用的堆内存字节数
+     * @return
+     */
+    abstract long estimatedBytes();
+
+    /**
+     * 计算新转移的次数, 即转移表缓存未命中的次数. 预先构建的DFA没有未命中
+     * @return
+     */
+    long misses(){
+        return 0;
+    }
+
+    /**
+     * 状态数是否曾经超过限制. 为真时之后没有计算过的转移都返回 LazyDFA.FAILED,
+     * 调用方应当在扫描之前检查, 直接使用NFA模拟. 预先构建的DFA不会失败
+     * @return
+     */
+    boolean failed(){
+        return false;
+    }
+}
@@ -0,0 +1,476 @@
+package cn.superming.re;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 把最小化的DFA编译成字节码
+ * 为每个Pattern生成一个CompiledDFA的子类, 直接写出class文件的字节, 不依赖任何字节码库.
+ * class文件版本为49, 不需要StackMapTable, 由类型推导校验器校验.
+ *
+ * 每个扫描方法都是一个循环: 读入一个字符, 用tableswitch按当前状态跳到该状态的代码块;
+ * 代码块按字符区间的边界做二分比较, 叶子处直接给出下一个状态, 或者直接返回结果(到达死状态、接收).
+ * Java 15及以上用Lookup.defineHiddenClass定义为隐藏类, Pattern不再使用后可以被卸载, 否则退回Lookup.defineClass.
+ *
+ * 代码超过方法大小或者分支偏移的限制时放弃生成, 调用方继续使用DFA.
+ */
+final class DFACompiler {
+    static final int THRESHOLD = Math.max(1, Integer.getInteger("cn.superming.re.bytecodeThreshold", 1000));    // 生成字节码前的调用次数
+    private static final int MAX_CODE = 65535;      // 方法字节码的最大长度
+    private static final String SUPER_CLASS = "cn/superming/re/CompiledDFA";
+    private static final String CLASS_NAME = "cn/superming/re/CompiledDFA$Generated";
+    private static final String CHAR_SEQUENCE = "java/lang/CharSequence";
+    private static final String[] METHOD_NAMES = {"matchToEnd", "matchPrefix", "containsToEnd", "contains"};
+    private static final String SCAN_DESCRIPTOR = "(Ljava/lang/CharSequence;I)Z";
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final Method DEFINE_HIDDEN_CLASS = defineHiddenClassMethod();
+    private static final AtomicInteger COUNTER = new AtomicInteger();   // 普通类不能重名, 退回defineClass时加上序号
+
+    // 扫描方法的局部变量: 0为this, 1为text, 2为from(之后作为下标)
+    private static final int INDEX = 2;
+    private static final int STATE = 4;
+    private static final int CHAR = 5;
+    private static final int MAX_STACK = 3;
+    private static final int MAX_LOCALS = 6;
+
+    // 用到的指令
+    private static final int ICONST_0 = 0x03;
+    private static final int ICONST_1 = 0x04;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ILOAD_2 = 0x1c;
+    private static final int ILOAD_3 = 0x1d;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ISTORE = 0x36;
+    private static final int ISTORE_3 = 0x3e;
+    private static final int IAND = 0x7e;
+    private static final int IINC = 0x84;
+    private static final int IF_ICMPLT = 0xa1;
+    private static final int IF_ICMPGE = 0xa2;
+    private static final int TABLESWITCH = 0xaa;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKEINTERFACE = 0xb9;
+    private static final int GOTO_W = 0xc8;
+
+    // 访问标志
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private final Program program;
+    private final ConstantPool pool = new ConstantPool();
+    private final int length;       // CharSequence.length
+    private final int charAt;       // CharSequence.charAt
+
+    private DFACompiler(Program program){
+        this.program = program;
+        this.length = pool.method(CHAR_SEQUENCE, "length", "()I", true);
+        this.charAt = pool.method(CHAR_SEQUENCE, "charAt", "(I)C", true);
+    }
+
+    /**
+     * 为Pattern的两个DFA生成字节码并实例化
+     * @param program 扁平化的NFA, 提供字符等价类的区间
+     * @param dfa 锚定DFA
+     * @param unanchoredDfa 非锚定DFA
+     * @return 无法生成时返回null
+     */
+    static CompiledDFA compile(Program program, DenseDFA dfa, DenseDFA unanchoredDfa){
+        if (dfa == null || unanchoredDfa == null){
+            return null;
+        }
+        String name = DEFINE_HIDDEN_CLASS != null ? CLASS_NAME : CLASS_NAME + COUNTER.incrementAndGet();
+        byte[] bytes = new DFACompiler(program).generate(name, dfa, unanchoredDfa);
+        if (bytes == null){
+            return null;
+        }
+        try {
+            return (CompiledDFA) define(bytes).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e){
+            return null;
+        }
+    }
+
+    private static Method defineHiddenClassMethod(){
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            return MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                    byte[].class, boolean.class, Array.newInstance(option, 0).getClass());
+        } catch (ReflectiveOperationException e){
+            return null;        // Java 15之前没有隐藏类
+        }
+    }
+
+    private static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+        if (DEFINE_HIDDEN_CLASS == null){
+            return LOOKUP.defineClass(bytes);
+        }
+        Object options = Array.newInstance(DEFINE_HIDDEN_CLASS.getParameterTypes()[2].getComponentType(), 0);
+        return ((MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(LOOKUP, bytes, true, options)).lookupClass();
+    }
+
+    /**
+     * 生成class文件
+     * @param name 类名
+     * @param dfa
+     * @param unanchoredDfa
+     * @return 代码过大时返回null
+     */
+    private byte[] generate(String name, DenseDFA dfa, DenseDFA unanchoredDfa){
+        Bytes[] codes = {
+                scan(dfa, true, true),
+                scan(dfa, true, false),
+                scan(unanchoredDfa, false, true),
+                scan(unanchoredDfa, false, false)
+        };
+        for (Bytes code : codes) {
+            if (code == null){
+                return null;
+            }
+        }
+
+        // 先登记所有常量, 常量池写出之后不能再增加
+        int thisClass = pool.classRef(name);
+        int superClass = pool.classRef(SUPER_CLASS);
+        int superInit = pool.method(SUPER_CLASS, "<init>", "()V", false);
+        int codeAttribute = pool.utf8("Code");
+        int initName = pool.utf8("<init>");
+        int initDescriptor = pool.utf8("()V");
+        int scanDescriptor = pool.utf8(SCAN_DESCRIPTOR);
+        int[] scanNames = new int[METHOD_NAMES.length];
+        for (int i = 0; i < METHOD_NAMES.length; i++) {
+            scanNames[i] = pool.utf8(METHOD_NAMES[i]);
+        }
+
+        Bytes init = new Bytes();
+        init.u1(ALOAD_0);
+        init.u1(INVOKESPECIAL);
+        init.u2(superInit);
+        init.u1(RETURN);
+
+        Bytes out = new Bytes();
+        out.u4(0xCAFEBABE);
+        out.u2(0);
+        out.u2(49);
+        out.u2(pool.count);
+        out.append(pool.bytes);
+        out.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(0);      // 接口
+        out.u2(0);      // 字段
+        out.u2(1 + codes.length);
+        writeMethod(out, ACC_PUBLIC, initName, initDescriptor, codeAttribute, 1, 1, init);
+        for (int i = 0; i < codes.length; i++) {
+            writeMethod(out, ACC_FINAL, scanNames[i], scanDescriptor, codeAttribute, MAX_STACK, MAX_LOCALS, codes[i]);
+        }
+        out.u2(0);      // 类的属性
+        return out.toByteArray();
+    }
+
+    private static void writeMethod(Bytes out, int access, int name, int descriptor, int codeAttribute,
+                                    int maxStack, int maxLocals, Bytes code){
+        out.u2(access);
+        out.u2(name);
+        out.u2(descriptor);
+        out.u2(1);
+        out.u2(codeAttribute);
+        out.u4(12 + code.size());
+        out.u2(maxStack);
+        out.u2(maxLocals);
+        out.u4(code.size());
+        out.append(code);
+        out.u2(0);      // 异常表
+        out.u2(0);      // Code的属性
+    }
+
+    /**
+     * 生成一个扫描方法
+     * @param dfa
+     * @param anchored 是否是锚定DFA, 锚定时到达死状态直接返回假
+     * @param toEnd 为真时读到末尾再看是否接收, 否则遇到接收状态就返回真
+     * @return 代码过大时返回null
+     */
+    private Bytes scan(DenseDFA dfa, boolean anchored, boolean toEnd){
+        int states = dfa.stateCount();      // 状态编号为1到states
+        Bytes code = new Bytes();
+        code.u1(ALOAD_1);
+        code.u1(INVOKEINTERFACE);
+        code.u2(length);
+        code.u1(1);
+        code.u1(0);
+        code.u1(ISTORE_3);
+        pushInt(code, dfa.start());
+        code.u1(ISTORE);
+        code.u1(STATE);
+
+        // 循环开始: 读完时的返回放在这里, 其余分支都很短
+        int loop = code.size();
+        code.u1(ILOAD_2);
+        code.u1(ILOAD_3);
+        int unfinished = code.size();
+        code.u1(IF_ICMPLT);
+        code.u2(0);
+        int end = code.size();
+        if (toEnd){
+            code.u1(ILOAD);
+            code.u1(STATE);
+            code.u1(ICONST_1);
+            code.u1(IAND);
+        } else {
+            code.u1(ICONST_0);
+        }
+        code.u1(IRETURN);
+        code.setU2(unfinished + 1, code.size() - unfinished);
+
+        code.u1(ALOAD_1);
+        code.u1(ILOAD_2);
+        code.u1(INVOKEINTERFACE);
+        code.u2(charAt);
+        code.u1(2);
+        code.u1(0);
+        code.u1(ISTORE);
+        code.u1(CHAR);
+        code.u1(IINC);
+        code.u1(INDEX);
+        code.u1(1);
+        code.u1(ILOAD);
+        code.u1(STATE);
+
+        // 按已编码的状态分派, 同一编号的接收位只有一种, 两个编码指向同一个代码块
+        int dispatch = code.size();
+        code.u1(TABLESWITCH);
+        while (code.size() % 4 != 0){
+            code.u1(0);
+        }
+        code.u4(end - dispatch);
+        int low = 2;
+        int high = states * 2 + 1;
+        code.u4(low);
+        code.u4(high);
+        int table = code.size();
+        for (int i = low; i <= high; i++) {
+            code.u4(0);
+        }
+
+        int classes = program.classCount();
+        int[] bounds = new int[classes];
+        int[] targets = new int[classes];
+        for (int id = 1; id <= states; id++) {
+            int block = code.size() - dispatch;
+            code.setU4(table + 4 * (id * 2 - low), block);
+            code.setU4(table + 4 * (id * 2 + 1 - low), block);
+            if (anchored && id == 1){
+                code.u1(ICONST_0);      // 锚定DFA的死状态
+                code.u1(IRETURN);
+                continue;
+            }
+
+            int count = 0;
+            for (int charClass = 0; charClass < classes; charClass++) {    // 相邻且目标相同的区间合并
+                int target = dfa.transition(id << 1, charClass);
+                if (count == 0 || targets[count - 1] != target){
+                    bounds[count] = program.representative(charClass);
+                    targets[count++] = target;
+                }
+            }
+            if (!emitTree(code, bounds, targets, 0, count - 1, id, anchored, toEnd, loop)){
+                return null;
+            }
+            if (code.size() > MAX_CODE){
+                return null;
+            }
+        }
+        return code;
+    }
+
+    /**
+     * 生成二分比较: bounds[from..to]是各区间的起点, 字符不小于中间的起点时跳到右半部分
+     * @return 分支偏移超出范围时返回假
+     */
+    private boolean emitTree(Bytes code, int[] bounds, int[] targets, int from, int to,
+                             int self, boolean anchored, boolean toEnd, int loop){
+        if (from == to){
+            emitLeaf(code, targets[from], self, anchored, toEnd, loop);
+            return true;
+        }
+        int middle = (from + to + 1) >>> 1;
+        code.u1(ILOAD);
+        code.u1(CHAR);
+        pushInt(code, bounds[middle]);
+        int branch = code.size();
+        code.u1(IF_ICMPGE);
+        code.u2(0);
+        if (!emitTree(code, bounds, targets, from, middle - 1, self, anchored, toEnd, loop)){
+            return false;
+        }
+        int offset = code.size() - branch;
+        if (offset > Short.MAX_VALUE){
+            return false;
+        }
+        code.setU2(branch + 1, offset);
+        return emitTree(code, bounds, targets, middle, to, self, anchored, toEnd, loop);
+    }
+
+    private void emitLeaf(Bytes code, int target, int self, boolean anchored, boolean toEnd, int loop){
+        if (anchored && target == LazyDFA.DEAD){
+            code.u1(ICONST_0);
+            code.u1(IRETURN);
+            return;
+        }
+        if (!toEnd && LazyDFA.isAccepting(target)){
+            code.u1(ICONST_1);
+            code.u1(IRETURN);
+            return;
+        }
+        if (target >> 1 != self){       // 停在原状态时不需要更新
+            pushInt(code, target);
+            code.u1(ISTORE);
+            code.u1(STATE);
+        }
+        int at = code.size();
+        code.u1(GOTO_W);
+        code.u4(loop - at);
+    }
+
+    private void pushInt(Bytes code, int value){
+        if (value >= -1 && value <= 5){
+            code.u1(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+            code.u1(BIPUSH);
+            code.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+            code.u1(SIPUSH);
+            code.u2(value);
+        } else {
+            code.u1(LDC_W);
+            code.u2(pool.integer(value));
+        }
+    }
+
+    /**
+     * 常量池, 相同的常量只登记一次
+     */
+    private static final class ConstantPool {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final Bytes bytes = new Bytes();
+        private int count = 1;      // 常量池的编号从1开始
+
+        int utf8(String value){
+            Integer index = indexes.get("U" + value);
+            if (index != null){
+                return index;
+            }
+            bytes.u1(1);
+            bytes.u2(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                bytes.u1(value.charAt(i));      // 类名和方法名都是ASCII
+            }
+            return register("U" + value);
+        }
+
+        int classRef(String name){
+            Integer index = indexes.get("C" + name);
+            if (index != null){
+                return index;
+            }
+            int nameIndex = utf8(name);
+            bytes.u1(7);
+            bytes.u2(nameIndex);
+            return register("C" + name);
+        }
+
+        int method(String owner, String name, String descriptor, boolean isInterface){
+            String key = "M" + owner + "." + name + descriptor;
+            Integer index = indexes.get(key);
+            if (index != null){
+                return index;
+            }
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            bytes.u1(12);
+            bytes.u2(nameIndex);
+            bytes.u2(descriptorIndex);
+            int nameAndType = register("N" + name + descriptor);
+            bytes.u1(isInterface ? 11 : 10);
+            bytes.u2(ownerIndex);
+            bytes.u2(nameAndType);
+            return register(key);
+        }
+
+        int integer(int value){
+            Integer index = indexes.get("I" + value);
+            if (index != null){
+                return index;
+            }
+            bytes.u1(3);
+            bytes.u4(value);
+            return register("I" + value);
+        }
+
+        private int register(String key){
+            indexes.put(key, count);
+            return count++;
+        }
+    }
+
+    /**
+     * 按大端序写入的字节数组
+     */
+    private static final class Bytes {
+        private byte[] data = new byte[256];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void u1(int value){
+            if (size == data.length){
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = (byte) value;
+        }
+
+        void u2(int value){
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void u4(int value){
+            u2(value >> 16);
+            u2(value);
+        }
+
+        void setU2(int at, int value){
+            data[at] = (byte) (value >> 8);
+            data[at + 1] = (byte) value;
+        }
+
+        void setU4(int at, int value){
+            setU2(at, value >> 16);
+            setU2(at + 2, value);
+        }
+
+        void append(Bytes other){
+            for (int i = 0; i < other.size; i++) {
+                u1(other.data[i]);
+            }
+        }
+
+        byte[] toByteArray(){
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package cn.superming.re;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * 预先完全确定化并最小化的DFA
+ * 编译时沿着LazyDFA遍历所有可达状态的转移, 再用Hopcroft算法合并等价状态,
+ * 得到的转移表不再变化, 匹配时没有未计算的表项, 也不需要加锁.
+ * 每个NFA结点都同样对待的字符等价类(例如不出现在正则表达式中的所有ASCII字符)合并成一列,
+ * 转移表通常只有十几列而不是一百多列, 确定化更快, 表也更小.
+ * 状态编码与LazyDFA相同: 编号0不使用, 编号1为死状态(非锚定模式下是没有进行中匹配的状态).
+ *
+ * 转移表保存在IntBuffer中, 可以是堆上的数组, 也可以直接是内存映射的编译结果文件(见PatternStore),
+ * 加载时不需要复制.
+ */
+final class DenseDFA extends DFA {
+    private final Program program;      // 用于把字符映射到等价类
+    private final int[] columnOf;       // 字符等价类所在的列
+    private final int stride;           // 每行的列数
+    private final int start;            // 开始状态(已编码)
+    private final IntBuffer table;      // 状态转移表, 每个状态占stride项, 表项为已编码的状态
+
+    private DenseDFA(Program program, int[] columnOf, int stride, int start, IntBuffer table){
+        this.program = program;
+        this.columnOf = columnOf;
+        this.stride = stride;
+        this.start = start;
+        this.table = table;
+    }
+
+    /**
+     * 把LazyDFA完全确定化后最小化
+     * @param program 扁平化的NFA
+     * @param lazy 由program构建的LazyDFA
+     * @return 状态数超过LazyDFA的上限时返回null
+     */
+    static DenseDFA minimize(Program program, LazyDFA lazy){
+        int[] columnOf = new int[program.classCount()];
+        int[] classes = columns(program, columnOf);     // 每列取一个字符等价类
+        int stride = classes.length;
+
+        // 1. 从死状态和开始状态出发遍历所有可达状态, 重新编号为0, 1, 2...(0为死状态)
+        int[] encoded = new int[16];        // 新编号 -> LazyDFA中已编码的状态
+        int[] index = new int[16];          // LazyDFA状态编号 -> 新编号 + 1, 0表示还没有遇到
+        int[] delta = new int[16 * stride]; // 用新编号表示的转移表
+        int count = 0;
+        encoded[count++] = LazyDFA.DEAD;
+        index = grow(index, LazyDFA.DEAD >> 1);
+        index[LazyDFA.DEAD >> 1] = count;
+        int begin = lazy.start();
+        if (begin != LazyDFA.DEAD){
+            encoded[count++] = begin;
+            index = grow(index, begin >> 1);
+            index[begin >> 1] = count;
+        }
+        for (int q = 0; q < count; q++) {
+            if ((q + 1) * stride > delta.length){
+                delta = Arrays.copyOf(delta, delta.length * 2);
+            }
+            for (int c = 0; c < stride; c++) {
+                int next = lazy.transition(encoded[q], classes[c]);
+                if (next == LazyDFA.FAILED){
+                    return null;
+                }
+                index = grow(index, next >> 1);
+                if (index[next >> 1] == 0){
+                    if (count == encoded.length){
+                        encoded = Arrays.copyOf(encoded, count * 2);
+                    }
+                    encoded[count++] = next;
+                    index[next >> 1] = count;
+                }
+                delta[q * stride + c] = index[next >> 1] - 1;
+            }
+        }
+
+        // 2. Hopcroft算法划分等价状态
+        boolean[] accepting = new boolean[count];
+        for (int q = 0; q < count; q++) {
+            accepting[q] = LazyDFA.isAccepting(encoded[q]);
+        }
+        int[] blockOf = refine(delta, stride, count, accepting);
+
+        // 3. 以等价类为新状态重建转移表, 死状态所在的类编号为1, 其余从2开始
+        int blocks = 0;
+        for (int b : blockOf) {
+            blocks = Math.max(blocks, b + 1);
+        }
+        int[] ids = new int[blocks];
+        int nextId = 2;
+        ids[blockOf[0]] = 1;
+        for (int q = 1; q < count; q++) {
+            if (ids[blockOf[q]] == 0){
+                ids[blockOf[q]] = nextId++;
+            }
+        }
+        int[] table = new int[nextId * stride];
+        boolean[] filled = new boolean[nextId];
+        for (int q = 0; q < count; q++) {
+            int id = ids[blockOf[q]];
+            if (filled[id]){
+                continue;
+            }
+            filled[id] = true;
+            for (int c = 0; c < stride; c++) {
+                int target = delta[q * stride + c];
+                table[id * stride + c] = encode(ids[blockOf[target]], accepting[target]);
+            }
+        }
+        int startState = begin == LazyDFA.DEAD ? LazyDFA.DEAD : encode(ids[blockOf[1]], accepting[1]);
+        return new DenseDFA(program, columnOf, stride, startState, IntBuffer.wrap(table));
+    }
+
+    /**
+     * 取已经最小化的DFA, 惰性DFA则用一个新的LazyDFA确定化, 避免原来的惰性DFA因为遍历所有状态而膨胀
+     * @param dfa
+     * @param program
+     * @param unanchored
+     * @return 只用NFA模拟或者状态过多时返回null
+     */
+    static DenseDFA of(DFA dfa, Program program, boolean unanchored){
+        if (dfa == null){
+            return null;
+        }
+        if (dfa instanceof DenseDFA){
+            return (DenseDFA) dfa;
+        }
+        return minimize(program, new LazyDFA(program, unanchored));
+    }
+
+    /**
+     * 把能被同一组NFA结点接收的字符等价类合并成一列
+     * @param program
+     * @param columnOf 输出每个字符等价类所在的列
+     * @return 每列的代表等价类
+     */
+    private static int[] columns(Program program, int[] columnOf){
+        Map<BitSet, Integer> columns = new HashMap<>();
+        int[] classes = new int[columnOf.length];
+        for (int charClass = 0; charClass < columnOf.length; charClass++) {
+            int c = program.representative(charClass);
+            BitSet accepted = new BitSet(program.size());
+            for (int pc = 0; pc < program.size(); pc++) {
+                if (program.accepts(pc, c)){
+                    accepted.set(pc);
+                }
+            }
+            Integer column = columns.get(accepted);
+            if (column == null){
+                column = columns.size();
+                columns.put(accepted, column);
+                classes[column] = charClass;
+            }
+            columnOf[charClass] = column;
+        }
+        return Arrays.copyOf(classes, columns.size());
+    }
+
+    /**
+     * Hopcroft划分: 从{接收, 不接收}开始, 用待处理的(块, 列)不断切分块,
+     * 切分时只把较小的一半加入待处理集合, 总耗时O(stride * n log n)
+     * @param delta 转移表
+     * @param stride 列数
+     * @param n 状态个数
+     * @param accepting 状态是否接收
+     * @return 每个状态所在的块
+     */
+    private static int[] refine(int[] delta, int stride, int n, boolean[] accepting){
+        // 逆转移: 读入第c列的字符后到达q的所有状态, 按(c, q)分组连续存放
+        int[] head = new int[stride * n + 1];
+        for (int p = 0; p < n; p++) {
+            for (int c = 0; c < stride; c++) {
+                head[c * n + delta[p * stride + c] + 1]++;
+            }
+        }
+        for (int i = 0; i < stride * n; i++) {
+            head[i + 1] += head[i];
+        }
+        int[] sources = new int[stride * n];
+        int[] fill = Arrays.copyOf(head, stride * n);
+        for (int p = 0; p < n; p++) {
+            for (int c = 0; c < stride; c++) {
+                sources[fill[c * n + delta[p * stride + c]]++] = p;
+            }
+        }
+
+        // 块是elements中的一段[first, end), 块内被标记的状态移到前面
+        int[] elements = new int[n];
+        int[] location = new int[n];
+        int[] blockOf = new int[n];
+        int[] first = new int[n];
+        int[] end = new int[n];
+        int[] marked = new int[n];
+        int blocks = 0;
+        int size = 0;
+        for (boolean accept : new boolean[]{false, true}) {
+            int from = size;
+            for (int q = 0; q < n; q++) {
+                if (accepting[q] == accept){
+                    location[q] = size;
+                    elements[size++] = q;
+                    blockOf[q] = blocks;
+                }
+            }
+            if (size > from){
+                first[blocks] = from;
+                end[blocks] = size;
+                blocks++;
+            }
+        }
+        if (blocks == 1){
+            return blockOf;
+        }
+
+        Deque<int[]> pending = new ArrayDeque<>();
+        int smaller = end[0] - first[0] <= end[1] - first[1] ? 0 : 1;
+        for (int c = 0; c < stride; c++) {
+            pending.add(new int[]{smaller, c});
+        }
+        int[] predecessors = new int[n];
+        int[] touched = new int[n];
+        while (!pending.isEmpty()){
+            int[] splitter = pending.poll();
+            int block = splitter[0];
+            int c = splitter[1];
+
+            // 先收集前驱再标记, 切分会打乱splitter块内的顺序
+            int predecessorCount = 0;
+            for (int i = first[block]; i < end[block]; i++) {
+                int q = elements[i];
+                for (int k = head[c * n + q]; k < head[c * n + q + 1]; k++) {
+                    predecessors[predecessorCount++] = sources[k];
+                }
+            }
+            int touchedCount = 0;
+            for (int i = 0; i < predecessorCount; i++) {
+                int p = predecessors[i];
+                int b = blockOf[p];
+                int position = first[b] + marked[b];
+                if (location[p] < position){
+                    continue;       // 已经标记过
+                }
+                int other = elements[position];
+                elements[position] = p;
+                elements[location[p]] = other;
+                location[other] = location[p];
+                location[p] = position;
+                if (marked[b]++ == 0){
+                    touched[touchedCount++] = b;
+                }
+            }
+
+            for (int i = 0; i < touchedCount; i++) {
+                int b = touched[i];
+                int split = first[b] + marked[b];
+                marked[b] = 0;
+                if (split == end[b]){
+                    continue;       // 整块都被标记, 不需要切分
+                }
+                int created = blocks++;
+                if (split - first[b] <= end[b] - split){    // 新块总是较小的一半
+                    first[created] = first[b];
+                    end[created] = split;
+                    first[b] = split;
+                } else {
+                    first[created] = split;
+                    end[created] = end[b];
+                    end[b] = split;
+                }
+                for (int k = first[created]; k < end[created]; k++) {
+                    blockOf[elements[k]] = created;
+                }
+                for (int a = 0; a < stride; a++) {
+                    pending.add(new int[]{created, a});
+                }
+            }
+        }
+        return blockOf;
+    }
+
+    private static int[] grow(int[] array, int index){
+        return index < array.length ? array : Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+    }
+
+    private static int encode(int id, boolean accepting){
+        return (id << 1) | (accepting ? 1 : 0);
+    }
+
+    @Override
+    int start() {
+        return start;
+    }
+
+    @Override
+    int next(int state, char c){
+        return table.get((state >> 1) * stride + columnOf[c < Program.ALPHABET ? c : program.classOf(c)]);
+    }
+
+    /**
+     * 按字符等价类跳转, 生成字节码时逐类读取转移表
+     * @param state 当前状态(已编码)
+     * @param charClass Program划分的字符等价类
+     * @return 跳转状态(已编码)
+     */
+    int transition(int state, int charClass){
+        return table.get((state >> 1) * stride + columnOf[charClass]);
+    }
+
+    /**
+     * @return 状态个数, 包括死状态
+     */
+    int stateCount(){
+        return table.capacity() / stride - 1;
+    }
+
+    @Override
+    long estimatedBytes(){
+        return 4L * columnOf.length + (table.isDirect() ? 0 : 4L * table.capacity());  // 映射的文件不占用堆内存
+    }
+
+    /**
+     * 写出转移表: 列数, 每个字符等价类所在的列, 开始状态, 行数, 然后逐行写出表项
+     * @param out
+     * @throws IOException
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(stride);
+        for (int column : columnOf) {
+            out.writeInt(column);
+        }
+        out.writeInt(start);
+        out.writeInt(table.capacity() / stride);
+        for (int i = 0; i < table.capacity(); i++) {
+            out.writeInt(table.get(i));
+        }
+    }
+
+    /**
+     * 读取writeTo写出的转移表, 转移表直接引用buffer中的数据而不复制
+     * 读取时检查每个表项都指向表中的行, 损坏的数据在这里就被拒绝, 匹配时不会越界
+     * @param program 对应的NFA, 决定了字符等价类的个数
+     * @param buffer 从当前位置开始读取, 读完后位置移到转移表之后
+     * @return
+     */
+    static DenseDFA readFrom(Program program, ByteBuffer buffer){
+        Program.require(buffer, 4);
+        int stride = buffer.getInt();
+        if (stride <= 0 || stride > program.classCount()){
+            throw new RuntimeException("输入有误: 编译结果已损坏.");
+        }
+        Program.require(buffer, 4L * program.classCount() + 8);
+        int[] columnOf = new int[program.classCount()];
+        buffer.asIntBuffer().get(columnOf);
+        buffer.position(buffer.position() + 4 * columnOf.length);
+        for (int column : columnOf) {
+            if (column < 0 || column >= stride){
+                throw new RuntimeException("输入有误: 编译结果已损坏.");
+            }
+        }
+        int start = buffer.getInt();
+        int rows = buffer.getInt();
+        if (rows < 2 || start < 0 || (start >> 1) >= rows){
+            throw new RuntimeException("输入有误: 编译结果已损坏.");
+        }
+        Program.require(buffer, 4L * rows * stride);
+        ByteBuffer slice = buffer.slice();
+        slice.limit(rows * stride * 4);
+        buffer.position(buffer.position() + rows * stride * 4);
+        IntBuffer table = slice.order(buffer.order()).asIntBuffer();
+        for (int i = 0; i < table.capacity(); i++) {
+            int next = table.get(i);
+            if (next != LazyDFA.FAILED && (next < 0 || (next >> 1) >= rows)){
+                throw new RuntimeException("输入有误: 编译结果已损坏.");
+            }
+        }
+        return new DenseDFA(program, columnOf, stride, start, table);
+    }
+}
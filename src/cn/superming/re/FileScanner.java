@@ -0,0 +1,161 @@
+package cn.superming.re;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 文件扫描器
+ * 用FileChannel.map把文件映射到内存, 直接在映射的字节上运行状态机, 文件内容不会被复制到堆上.
+ * 文件按行处理, 行尾的 \n 或 \r\n 不参与匹配, ^ 和 $ 分别表示行首和行尾, 匹配不跨行.
+ * 状态机读一遍映射的字节就同时找出行尾和包含匹配的行, 只在包含匹配的行上再查找匹配的位置.
+ * Pattern以 Regex.UTF8 编译时按UTF-8直接匹配字节, 否则每个字节当作一个字符(ISO-8859-1), 偏移都按字节计算.
+ */
+public final class FileScanner {
+    private static final long REGION_SIZE = 1L << 30;     // 每次映射的最大字节数
+
+    private final Pattern pattern;
+
+    public FileScanner(Pattern pattern){
+        if (pattern == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+        this.pattern = pattern;
+    }
+
+    /**
+     * 返回所有包含匹配的行的起始偏移
+     * @param file 文件路径
+     * @return 行首在文件中的偏移, 从小到大排列
+     * @throws IOException
+     */
+    public long[] matchingLines(Path file) throws IOException {
+        LineCollector collector = new LineCollector(false);
+        scan(file, collector);
+        return collector.result();
+    }
+
+    /**
+     * 返回所有匹配在文件中的起止偏移, 每一行内采用最左最长、互不重叠的语义
+     * @param file 文件路径
+     * @return 起点和终点成对存放: [start0, end0, start1, end1, ...]
+     * @throws IOException
+     */
+    public long[] matchSpans(Path file) throws IOException {
+        LineCollector collector = new LineCollector(true);
+        scan(file, collector);
+        return collector.result();
+    }
+
+    /**
+     * 逐段映射文件, 每段在最后一个换行符处截断, 保证行不会被拆开
+     * @param file
+     * @param collector
+     * @throws IOException
+     */
+    private void scan(Path file, LineCollector collector) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            long fileSize = channel.size();
+            long regionStart = 0;
+            while (regionStart < fileSize){
+                long size = Math.min(REGION_SIZE, fileSize - regionStart);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, size);
+                int limit = (int) size;
+                if (regionStart + size < fileSize){
+                    limit = lastNewLine(buffer, limit) + 1;
+                    if (limit == 0){
+                        throw new RuntimeException("行长度超过限制: " + REGION_SIZE + "字节.");
+                    }
+                }
+                scanLines(buffer, limit, regionStart, collector);
+                regionStart += limit;
+            }
+        }
+    }
+
+    private static int lastNewLine(ByteBuffer buffer, int limit){
+        for (int i = limit - 1; i >= 0; i--) {
+            if (buffer.get(i) == '\n'){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 找出映射区域中包含匹配的行并交给collector, 换行符在匹配的同一遍扫描中找出
+     * @param buffer 映射区域
+     * @param limit 区域中需要处理的字节数
+     * @param base 区域在文件中的偏移
+     * @param collector
+     */
+    private void scanLines(ByteBuffer buffer, int limit, long base, LineCollector collector){
+        ByteSequence region = new ByteSequence(buffer, 0, limit);
+        int lineStart = 0;
+        while (lineStart < limit){
+            long line = collector.matcher.nextMatchingLine(region, lineStart);
+            if (line < 0){
+                return;
+            }
+            lineStart = (int) (line >>> 32);
+            int contentEnd = (int) line;
+            collector.line(region, lineStart, contentEnd, base + lineStart);
+            lineStart = contentEnd < limit && buffer.get(contentEnd) == '\r' ? contentEnd + 2 : contentEnd + 1;
+        }
+    }
+
+    /**
+     * 收集包含匹配的行或者行中的匹配
+     */
+    private final class LineCollector {
+        private final boolean collectSpans;
+        private final Matcher matcher = pattern.matcher();
+        private final ByteSequence line = new ByteSequence(null, 0, 0);
+        private long[] result = new long[16];
+        private int count;
+
+        LineCollector(boolean collectSpans){
+            this.collectSpans = collectSpans;
+        }
+
+        /**
+         * 处理一个已知包含匹配的行, 收集匹配时在这一行上依次查找
+         * @param region 映射区域
+         * @param start 行首在区域中的偏移
+         * @param end 行尾在区域中的偏移, 不包含换行符
+         * @param lineOffset 行首在文件中的偏移
+         */
+        void line(ByteSequence region, int start, int end, long lineOffset){
+            if (!collectSpans){
+                add(lineOffset);
+                return;
+            }
+            line.slice(region, start, end);
+            int position = 0;
+            while (position < line.length()){
+                long span = matcher.find(line, position, line.length());
+                if (span < 0){
+                    break;
+                }
+                add(lineOffset + (span >>> 32));
+                add(lineOffset + (int) span);
+                position = (int) span;
+            }
+            line.wrap(null, 0, 0);
+        }
+
+        private void add(long value){
+            if (count == result.length){
+                result = Arrays.copyOf(result, count * 2);
+            }
+            result[count++] = value;
+        }
+
+        long[] result(){
+            return Arrays.copyOf(result, count);
+        }
+    }
+}
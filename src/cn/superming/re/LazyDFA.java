@@ -0,0 +1,307 @@
+package cn.superming.re;
+
+import java.util.*;
+
+/**
+ * 惰性构建的DFA
+ * 每个不同的NFA状态集合在第一次出现时才被转换为一个DFA状态, 转移结果缓存在int表中,
+ * 预热之后每个字符只需要一次数组查找.
+ * 转移表的列是Program划分的字符等价类, ASCII字符各自成类, 非ASCII字符按区间归类.
+ *
+ * 非锚定模式下每读入一个字符之前都会加入种子结点(通常就是开始结点)的闭包, 相当于 .*(regex),
+ * 此时状态接收表示有一个非空匹配在当前位置结束, 空集状态也不再是死状态.
+ *
+ * 表项编码: (DFA状态编号 << 1) | 是否接收, 0 表示该转移还没有计算过.
+ * 查表不加锁, 只有计算新转移时才加锁, 所以多个线程可以共享同一个DFA.
+ * 新的表和接收编号数组都是先填好再发布, 读线程看到旧数组或者未计算的表项时才进入加锁的慢路径.
+ * 状态数第一次超过限制后记住失败, 之后未计算的转移不再加锁, 直接返回 FAILED.
+ */
+final class LazyDFA extends DFA {
+    static final int UNKNOWN = 0;          // 转移尚未计算
+    static final int FAILED = -1;          // 状态数超过限制, 调用方应退回NFA模拟
+    static final int DEAD = 1 << 1;        // 空集对应的死状态, 编号为1且不接收
+
+    private static final int MAX_STATES = 4096;    // 最多缓存的DFA状态数
+
+    private final Program program;                  // 扁平化的NFA
+    private final int stride;                       // 转移表每行的列数, 即字符等价类的个数
+    private final boolean unanchored;               // 是否在每个位置加入种子结点
+    private final int[] seedClosure;                // 种子结点的epsilon闭包
+    private volatile int[][] stateMatchIds = new int[4][];  // 每个DFA状态包含的接收编号, 下标为DFA状态编号
+    private final Map<StateSet, Integer> stateIds = new HashMap<>();
+    private final List<int[]> stateSets = new ArrayList<>();   // 下标为DFA状态编号
+    private volatile int[] table;                   // 状态转移表, 每个状态占stride项
+    private final int start;                        // 开始状态(已编码)
+    private long misses;                            // 计算新转移的次数, 在锁内计数
+    private volatile boolean failed;                // 状态数是否曾经超过限制
+
+    LazyDFA(Program program, boolean unanchored){
+        this(program, unanchored ? program.start : Program.NONE);
+    }
+
+    /**
+     * @param program 扁平化的NFA
+     * @param seed 在每个位置都要加入的种子结点, 为Program.NONE时是锚定模式
+     */
+    LazyDFA(Program program, int seed){
+        this.program = program;
+        this.stride = program.classCount();
+        this.unanchored = seed != Program.NONE;
+        table = new int[stride * 4];
+        stateSets.add(null);                        // 编号0不使用, 使得表项0可以表示未计算
+        addState(new int[0]);                       // 编号1为死状态
+
+        boolean[] inSet = new boolean[program.size()];
+        int[] stack = new int[program.size()];
+        inSet[program.start] = true;
+        start = addState(closure(inSet, stack, new int[]{program.start}, 1));
+        if (unanchored){
+            inSet = new boolean[program.size()];
+            inSet[seed] = true;
+            seedClosure = closure(inSet, stack, new int[]{seed}, 1);
+        } else {
+            seedClosure = null;
+        }
+    }
+
+    @Override
+    int start() {
+        return start;
+    }
+
+    /**
+     * 估算当前占用的堆内存字节数, 随着新状态的加入而增长
+     * @return
+     */
+    @Override
+    synchronized long estimatedBytes(){
+        long bytes = 4L * table.length;
+        for (int i = 1; i < stateSets.size(); i++) {
+            bytes += 4L * stateSets.get(i).length * 2;  // 结点集合本身以及哈希表中的键
+        }
+        return bytes;
+    }
+
+    @Override
+    synchronized long misses(){
+        return misses;
+    }
+
+    @Override
+    boolean failed(){
+        return failed;
+    }
+
+    static boolean isAccepting(int state){
+        return (state & 1) != 0;
+    }
+
+    /**
+     * 返回DFA状态包含的所有接收编号(从小到大, 不重复)
+     * @param state 已编码的状态
+     * @return
+     */
+    int[] matchIds(int state){
+        int id = state >> 1;
+        int[][] matchIds = stateMatchIds;
+        if (id < matchIds.length && matchIds[id] != null){
+            return matchIds[id];
+        }
+        synchronized (this){        // 读到了旧数组, 加锁后一定能看到
+            return stateMatchIds[id];
+        }
+    }
+
+    /**
+     * DFA的状态转移函数
+     * @param state 当前状态(已编码)
+     * @param c 输入字符
+     * @return 跳转状态(已编码), 或者 FAILED
+     */
+    @Override
+    int next(int state, char c){
+        return transition(state, c < Program.ALPHABET ? c : program.classOf(c));
+    }
+
+    /**
+     * 按字符等价类跳转, 预先确定化时逐类遍历所有转移
+     * @param state 当前状态(已编码)
+     * @param charClass 字符等价类
+     * @return 跳转状态(已编码), 或者 FAILED
+     */
+    int transition(int state, int charClass){
+        int[] t = table;
+        int index = (state >> 1) * stride + charClass;
+        if (index < t.length){
+            int next = t[index];
+            if (next != UNKNOWN){
+                return next;
+            }
+        }
+        return failed ? FAILED : computeNext(state, charClass);
+    }
+
+    /**
+     * 计算一条还没有缓存的转移, 必要时创建新的DFA状态
+     * @param state
+     * @param charClass 字符等价类
+     * @return
+     */
+    private synchronized int computeNext(int state, int charClass){
+        int index = (state >> 1) * stride + charClass;
+        int next = table[index];        // 加锁后再检查一次, 可能已被其他线程计算
+        if (next != UNKNOWN){
+            return next;
+        }
+
+        misses++;
+        int c = program.representative(charClass);
+        int[] set = stateSets.get(state >> 1);
+        boolean[] inSet = new boolean[program.size()];
+        int[] moved = new int[program.size()];
+        int count = 0;
+        for (int pc : set) {            // 对集合中的结点逐个进行跳转
+            int target = program.out[pc];
+            if (program.accepts(pc, c) && !inSet[target]){
+                inSet[target] = true;
+                moved[count++] = target;
+            }
+        }
+        if (unanchored){                // 非锚定模式下种子结点也可以接收该字符
+            for (int pc : seedClosure) {
+                int target = program.out[pc];
+                if (program.accepts(pc, c) && !inSet[target]){
+                    inSet[target] = true;
+                    moved[count++] = target;
+                }
+            }
+        }
+
+        if (count == 0){
+            next = DEAD;
+        } else {
+            int[] closure = closure(inSet, new int[program.size()], moved, count);
+            Integer id = stateIds.get(new StateSet(closure));
+            if (id != null){
+                next = encode(id, closure);
+            } else if (stateSets.size() >= MAX_STATES){
+                failed = true;
+                return FAILED;
+            } else {
+                next = addState(closure);
+            }
+        }
+        table[index] = next;
+        return next;
+    }
+
+    /**
+     * 计算epsilon闭包, 返回排好序的结点编号
+     * @param inSet 标记结点是否已经在集合中
+     * @param stack 显式栈
+     * @param seeds 初始结点
+     * @param seedCount 初始结点个数
+     * @return
+     */
+    private int[] closure(boolean[] inSet, int[] stack, int[] seeds, int seedCount){
+        int top = 0;
+        for (int i = 0; i < seedCount; i++) {
+            stack[top++] = seeds[i];
+        }
+        while (top > 0){
+            int pc = stack[--top];
+            if (program.opcode[pc] != Program.EPSILON){
+                continue;
+            }
+            int out = program.out[pc];
+            if (out != Program.NONE && !inSet[out]){
+                inSet[out] = true;
+                stack[top++] = out;
+            }
+            int out2 = program.out2[pc];
+            if (out2 != Program.NONE && !inSet[out2]){
+                inSet[out2] = true;
+                stack[top++] = out2;
+            }
+        }
+
+        int size = 0;
+        for (boolean b : inSet) {
+            if (b) size++;
+        }
+        int[] result = new int[size];
+        for (int i = 0, j = 0; i < inSet.length; i++) {
+            if (inSet[i]) result[j++] = i;
+        }
+        return result;
+    }
+
+    /**
+     * 新建DFA状态并为它分配一行转移表
+     * @param set NFA结点编号集合
+     * @return 新状态(已编码)
+     */
+    private int addState(int[] set){
+        int id = stateSets.size();
+        stateSets.add(set);
+        stateIds.put(new StateSet(set), id);
+
+        int[][] matchIds = stateMatchIds;
+        if (id >= matchIds.length){
+            matchIds = Arrays.copyOf(matchIds, matchIds.length * 2);
+        }
+        matchIds[id] = collectMatchIds(set);
+        stateMatchIds = matchIds;
+
+        int[] t = table;
+        if ((id + 1) * stride > t.length){
+            table = Arrays.copyOf(t, t.length * 2);     // 先复制再发布, 读线程最多看到旧表
+        }
+        return encode(id, set);
+    }
+
+    private int[] collectMatchIds(int[] set){
+        int[] ids = new int[set.length];
+        int count = 0;
+        for (int pc : set) {
+            if (program.opcode[pc] == Program.MATCH){
+                ids[count++] = program.edge[pc];
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private int encode(int id, int[] set){
+        for (int pc : set) {
+            if (program.opcode[pc] == Program.MATCH){
+                return (id << 1) | 1;
+            }
+        }
+        return id << 1;
+    }
+
+    /**
+     * 以NFA结点编号集合作为哈希表的键
+     */
+    private static final class StateSet {
+        private final int[] nums;
+        private final int hash;
+
+        StateSet(int[] nums){
+            this.nums = nums;
+            this.hash = Arrays.hashCode(nums);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateSet && Arrays.equals(nums, ((StateSet) o).nums);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package cn.superming.re;
+
+import java.util.*;
+
+/**
+ * 查找最左最长匹配用的惰性DFA
+ * 状态是按起点从早到晚排列的若干组NFA结点, 加上当前位置是否还要加入开始结点(播种)的标记.
+ * 同一个结点只保留在起点最早的那一组中: 起点更晚的线程从这个结点往后的走法完全相同, 不可能胜出.
+ * 某一组读入字符后到达接收结点时, 它之后的组都不可能胜出, 全部丢弃并且不再播种,
+ * 它之前的组仍可能以更靠左的起点匹配. 所以从前往后扫描时最后一次处于接收状态的位置就是最左最长匹配的终点,
+ * 与NFA模拟的结果相同, 起点再由反转的DFA从终点往前找出.
+ * 起点有上界时, 扫描到上界后经 stop 转到不再播种的状态, 已有的线程都结束后进入死状态, 不会读到不需要的文本.
+ * 以 $ 结尾时只有在末尾的接收才算数, 既不丢弃也不停止播种, 所有结点合成一组.
+ *
+ * 状态编码与LazyDFA相同: (DFA状态编号 << 1) | 是否接收, 编号1为死状态, 没有线程但仍在播种的状态就是开始状态.
+ * 转移表最后一列是 stop 转移. 查表不加锁、计算新转移时加锁以及状态数超过限制后记住失败, 也都与LazyDFA相同.
+ */
+final class LeftmostDFA extends DFA {
+    private static final int MAX_STATES = 4096;    // 最多缓存的DFA状态数
+    private static final int GROUP_END = -1;       // 状态的结点序列中每一组的结束标记
+
+    private final Program program;                  // 扁平化的NFA
+    private final int stride;                       // 转移表每行的列数: 字符等价类的个数加上 stop 一列
+    private final boolean toEnd;                    // 是否只接收在末尾结束的匹配
+    private final int[] seedClosure;                // 开始结点的epsilon闭包
+    private final Map<StateKey, Integer> stateIds = new HashMap<>();
+    private final List<int[]> states = new ArrayList<>();  // 下标为DFA状态编号: [是否播种, 第一组结点..., GROUP_END, 第二组结点..., GROUP_END, ...]
+    private volatile int[] table;                   // 状态转移表, 每个状态占stride项
+    private final int start;                        // 开始状态(已编码)
+    private long misses;                            // 计算新转移的次数, 在锁内计数
+    private volatile boolean failed;                // 状态数是否曾经超过限制
+
+    /**
+     * @param program 扁平化的NFA
+     * @param toEnd 为真时只接收在末尾结束的匹配, 即正则表达式以 $ 结尾
+     */
+    LeftmostDFA(Program program, boolean toEnd){
+        this.program = program;
+        this.stride = program.classCount() + 1;
+        this.toEnd = toEnd;
+        table = new int[stride * 4];
+        states.add(null);                           // 编号0不使用, 使得表项0可以表示未计算
+        addState(new int[]{0});                     // 编号1为死状态
+        start = addState(new int[]{1});
+
+        boolean[] inSet = new boolean[program.size()];
+        int[] closure = new int[program.size()];
+        int count = closure(program.start, inSet, new int[program.size()], closure, 0);
+        seedClosure = Arrays.copyOf(closure, count);
+    }
+
+    @Override
+    int start() {
+        return start;
+    }
+
+    @Override
+    synchronized long estimatedBytes(){
+        long bytes = 4L * table.length;
+        for (int i = 1; i < states.size(); i++) {
+            bytes += 4L * states.get(i).length * 2;     // 状态本身以及哈希表中的键
+        }
+        return bytes;
+    }
+
+    @Override
+    synchronized long misses(){
+        return misses;
+    }
+
+    @Override
+    boolean failed(){
+        return failed;
+    }
+
+    @Override
+    int next(int state, char c){
+        return transition(state, c < Program.ALPHABET ? c : program.classOf(c));
+    }
+
+    /**
+     * 到达起点的上界: 之后不再播种
+     * @param state 当前状态(已编码)
+     * @return 跳转状态(已编码), 没有线程时为 LazyDFA.DEAD, 或者 LazyDFA.FAILED
+     */
+    int stop(int state){
+        return transition(state, stride - 1);
+    }
+
+    private int transition(int state, int column){
+        int[] t = table;
+        int index = (state >> 1) * stride + column;
+        if (index < t.length){
+            int next = t[index];
+            if (next != LazyDFA.UNKNOWN){
+                return next;
+            }
+        }
+        return failed ? LazyDFA.FAILED : computeNext(state, column);
+    }
+
+    /**
+     * 计算一条还没有缓存的转移, 必要时创建新的DFA状态
+     * @param state
+     * @param column 字符等价类, 或者最后一列表示 stop
+     * @return
+     */
+    private synchronized int computeNext(int state, int column){
+        int index = (state >> 1) * stride + column;
+        int next = table[index];        // 加锁后再检查一次, 可能已被其他线程计算
+        if (next != LazyDFA.UNKNOWN){
+            return next;
+        }
+
+        misses++;
+        int[] current = states.get(state >> 1);
+        int[] result;
+        if (column == stride - 1){
+            result = current.clone();
+            result[0] = 0;
+        } else {
+            result = move(current, program.representative(column));
+        }
+
+        Integer id = stateIds.get(new StateKey(result));
+        if (id != null){
+            next = encode(id, result);
+        } else if (states.size() >= MAX_STATES){
+            failed = true;
+            return LazyDFA.FAILED;
+        } else {
+            next = addState(result);
+        }
+        table[index] = next;
+        return next;
+    }
+
+    /**
+     * 播种之后按组读入字符c, 每组内的结点求出闭包, 已经出现在更早的组中的结点不再加入
+     * @param current 当前状态的结点序列
+     * @param c 字符等价类的代表字符
+     * @return 跳转后状态的结点序列
+     */
+    private int[] move(int[] current, int c){
+        boolean seeding = current[0] != 0;
+        boolean[] inSet = new boolean[program.size()];
+        int[] stack = new int[program.size()];
+        int[] result = new int[program.size() + current.length + 2];   // 结点不重复, 组数最多增加1
+        int count = 1;
+        int groupStart = count;
+        int from = 1;
+        while (from < current.length || seeding){
+            int[] group = current;
+            int end;
+            if (from < current.length){
+                end = from;
+                while (current[end] != GROUP_END){
+                    end++;
+                }
+            } else {                    // 最后一组是在当前位置播种的线程
+                group = seedClosure;
+                from = 0;
+                end = seedClosure.length;
+                seeding = false;
+            }
+            for (int k = from; k < end; k++) {
+                int pc = group[k];
+                if (program.accepts(pc, c) && !inSet[program.out[pc]]){
+                    count = closure(program.out[pc], inSet, stack, result, count);
+                }
+            }
+            from = group == current ? end + 1 : current.length;
+
+            if (toEnd || count == groupStart){
+                continue;               // 以 $ 结尾时所有结点合成一组; 空组直接去掉
+            }
+            Arrays.sort(result, groupStart, count);
+            boolean matched = containsMatch(result, groupStart, count);
+            result[count++] = GROUP_END;
+            if (matched){
+                return finish(result, count, false);    // 之后的组都不可能胜出, 也不再播种
+            }
+            groupStart = count;
+        }
+        if (toEnd && count > groupStart){
+            Arrays.sort(result, groupStart, count);
+            result[count++] = GROUP_END;
+        }
+        return finish(result, count, current[0] != 0);
+    }
+
+    private boolean containsMatch(int[] nodes, int from, int to){
+        for (int k = from; k < to; k++) {
+            if (nodes[k] != GROUP_END && program.opcode[nodes[k]] == Program.MATCH){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] finish(int[] result, int count, boolean seeding){
+        result[0] = seeding ? 1 : 0;
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * 从pc出发沿空转移求闭包, 把其中的字符结点和接收结点追加到result中
+     * @param pc 起始结点, 调用前还不在集合中
+     * @param inSet 标记结点是否已经在集合中
+     * @param stack 显式栈
+     * @param result
+     * @param count result中已有的元素个数
+     * @return 追加之后的元素个数
+     */
+    private int closure(int pc, boolean[] inSet, int[] stack, int[] result, int count){
+        int top = 0;
+        inSet[pc] = true;
+        stack[top++] = pc;
+        while (top > 0){
+            pc = stack[--top];
+            if (program.opcode[pc] != Program.EPSILON){
+                result[count++] = pc;
+                continue;
+            }
+            int out = program.out[pc];
+            if (out != Program.NONE && !inSet[out]){
+                inSet[out] = true;
+                stack[top++] = out;
+            }
+            int out2 = program.out2[pc];
+            if (out2 != Program.NONE && !inSet[out2]){
+                inSet[out2] = true;
+                stack[top++] = out2;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 新建DFA状态并为它分配一行转移表
+     * @param state 状态的结点序列
+     * @return 新状态(已编码)
+     */
+    private int addState(int[] state){
+        int id = states.size();
+        states.add(state);
+        stateIds.put(new StateKey(state), id);
+
+        int[] t = table;
+        if ((id + 1) * stride > t.length){
+            table = Arrays.copyOf(t, t.length * 2);     // 先复制再发布, 读线程最多看到旧表
+        }
+        return encode(id, state);
+    }
+
+    private int encode(int id, int[] state){
+        return containsMatch(state, 1, state.length) ? (id << 1) | 1 : id << 1;
+    }
+
+    /**
+     * 以状态的结点序列作为哈希表的键
+     */
+    private static final class StateKey {
+        private final int[] nums;
+        private final int hash;
+
+        StateKey(int[] nums){
+            this.nums = nums;
+            this.hash = Arrays.hashCode(nums);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateKey && Arrays.equals(nums, ((StateKey) o).nums);
+        }
+    }
+}
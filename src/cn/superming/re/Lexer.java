@@ -27,7 +27,7 @@ class Lexer {
     private int charIndex = 0;              // 指示当前解析到第几个字符
     private String currentRegex = "";       // 当前正在解析的正则表达式
     private Tag currentTag = Tag.START;     // 当前字符对应的标签
-    private char currentChar = '\0';        // 当前解析的字符
+    private int currentChar = '\0';         // 当前解析的字符(Unicode码点, 代理对合并为一个码点)
 
     private boolean isEscape;               // 是否有转义符
 
@@ -71,7 +71,7 @@ class Lexer {
 
     boolean matchCurrentTag(Tag tag){ return currentTag == tag; }
 
-    char getCurrentChar() { return currentChar; }
+    int getCurrentChar() { return currentChar; }
     Tag getCurrentTag() { return currentTag; }
 
     /**
@@ -83,18 +83,18 @@ class Lexer {
             return;
         }
 
-        currentChar = currentRegex.charAt(charIndex);
+        currentChar = currentRegex.codePointAt(charIndex);
         isEscape = (currentChar == '\\');
         if (isEscape){           // 如果遇到了转移字符
             charIndex++;         // 跳过转义字符
-            currentChar = currentRegex.charAt(charIndex);
+            currentChar = currentRegex.codePointAt(charIndex);
             currentTag = Tag.L;  // 只能转义特殊字符，将它们当作字符常量
         }
         else {
-            currentTag = tagMap[currentChar];
+            currentTag = currentChar < ASCII_COUNT ? tagMap[currentChar] : Tag.L;  // 非ASCII字符都是常规字符
         }
 
-        charIndex++;            // 当前字符索引结束，指向下一个
+        charIndex += Character.charCount(currentChar);  // 当前字符索引结束，指向下一个
     }
 
     /**
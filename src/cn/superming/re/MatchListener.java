@@ -0,0 +1,13 @@
+package cn.superming.re;
+
+/**
+ * 流式匹配的回调接口
+ */
+public interface MatchListener {
+    /**
+     * 找到一个匹配时调用
+     * @param start 匹配在整个流中的起点(包含)
+     * @param end 匹配在整个流中的终点(不包含)
+     */
+    void onMatch(long start, long end);
+}
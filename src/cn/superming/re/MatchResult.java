@@ -0,0 +1,51 @@
+package cn.superming.re;
+
+/**
+ * 一次匹配的结果
+ * 只记录起止偏移, 调用group时才截取子串.
+ * 在字符序列中查找时偏移是字符下标, 在字节中查找时偏移是相对于起始位置的字节偏移.
+ *
+ * 捕获分组按左括号出现的顺序从1开始编号, (?:...) 不捕获, 分组0是整个匹配.
+ * 分组的位置在第一次读取时才计算, 只在匹配到的区间上运行一次带标记的NFA模拟.
+ * 没有参与匹配的分组, start和end返回-1, group返回null.
+ */
+public interface MatchResult {
+
+    /**
+     * @return 匹配的起点(含)
+     */
+    int start();
+
+    /**
+     * @return 匹配的终点(不含)
+     */
+    int end();
+
+    /**
+     * @return 匹配到的子串, 字节按UTF-8(UTF8模式)或ISO-8859-1解码
+     */
+    String group();
+
+    /**
+     * @return 捕获分组的个数, 不包括分组0
+     */
+    int groupCount();
+
+    /**
+     * @param group 分组编号
+     * @return 分组的起点(含), 没有参与匹配时为-1
+     */
+    int start(int group);
+
+    /**
+     * @param group 分组编号
+     * @return 分组的终点(不含), 没有参与匹配时为-1
+     */
+    int end(int group);
+
+    /**
+     * @param group 分组编号
+     * @return 分组匹配到的子串, 没有参与匹配时为null
+     */
+    String group(int group);
+}
@@ -0,0 +1,1658 @@
+package cn.superming.re;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 匹配器
+ * 持有匹配过程中用到的可变状态(两个轮流使用的稀疏状态集合和求epsilon闭包用的显式栈),
+ * 同一个Matcher可以被反复使用, 稳定状态下匹配不产生垃圾.
+ * Matcher不是线程安全的, 每个线程应使用自己的Matcher, Pattern则可以共享.
+ *
+ * 可以直接匹配byte[]或ByteBuffer中的字节: UTF8模式下按UTF-8匹配, 不需要先解码成字符串;
+ * 否则每个字节当作一个字符(ISO-8859-1). UTF8模式下传入的字符串会先编码成UTF-8字节.
+ *
+ * find采用最左最长、互不重叠的语义, 找到的匹配只记录起止偏移, 通过MatchResult的方法读取,
+ * 只有调用group时才截取子串. findAll和matchSpans直接返回成对存放的偏移, 不创建任何子串.
+ * 在字符序列中查找时偏移是字符下标(UTF8模式下也是), 在字节中查找时偏移是字节偏移.
+ *
+ * find本身只求整个匹配的区间, 第一次读取捕获分组(start(int)、end(int)、group(int))时,
+ * 才在匹配到的区间上用CaptureMatcher求出各分组的位置, 不使用分组时查找的开销不变.
+ */
+public final class Matcher implements MatchResult {
+    private static final int REVERSE_FAILED = -2;       // 反转的DFA状态过多, 需要退回其他方法
+    private static final long UNKNOWN_SPAN = -2;        // DFA状态过多, 需要退回NFA模拟
+
+    private final Pattern pattern;
+    private final Program program;
+    private final DFA dfa;              // 为空时只使用NFA模拟
+    private final DFA unanchoredDfa;
+    private DFA reverseDfa;             // 从后往前扫描用的DFA, 第一次需要时才取
+    private LeftmostDFA leftmostDfa;    // 查找最左最长匹配的终点用的DFA, 第一次需要时才取
+    private final Prefilter prefilter;  // 用字面量快速排除不可能匹配的文本
+    private final boolean utf8;         // 状态机是否按UTF-8字节构建
+    private final ByteSequence bytes = new ByteSequence(null, 0, 0);   // 匹配字节时复用
+
+    private SparseSet clist;            // 当前状态集合
+    private SparseSet nlist;            // 读入一个字符后的状态集合
+    private final int[] stack;          // 求epsilon闭包用的显式栈
+    private int[] cstart;               // 查找时clist中线程的起点, 下标与clist一致
+    private int[] nstart;
+
+    private ThreadList threads;         // 单遍扫描时的当前线程(结点, 起点)
+    private ThreadList nextThreads;     // 读入一个字符后的线程
+    private final int[] markGeneration; // 结点最后一次被加入时所在的代
+    private final int[] markStart;      // 结点最后一次被加入时的起点
+    private int generation;
+    private long[] spans = new long[16];    // 扫描得到的匹配区间
+    private int spanCount;
+
+    private CharSequence foundText;     // 最近一次find所在的文本, 没有找到时为空
+    private int foundStart;             // 最近一次find找到的匹配的起点
+    private int foundEnd;               // 最近一次find找到的匹配的终点
+    private final ByteSequence foundBytes = new ByteSequence(null, 0, 0);  // 在字节中find时复用
+    private Utf8Text utf8Text;          // UTF8模式下编码字符序列时复用
+    private CaptureMatcher captures;    // 第一次读取分组时创建
+    private final int[] foundGroups;    // 最近一次find的分组位置, 第n组在[2n, 2n + 1]
+    private boolean groupsFound;        // foundGroups是否已经是最近一次find的结果
+
+    private long scanned;               // 本次匹配中NFA模拟或生成的字节码读入的字符数, 只在打开统计时计数
+    private long transitions;           // 本次匹配中的DFA转移次数
+    private long visited;               // 本次匹配中访问的NFA结点数
+
+    Matcher(Pattern pattern){
+        this.pattern = pattern;
+        this.program = pattern.program();
+        this.dfa = pattern.dfa();
+        this.unanchoredDfa = pattern.unanchoredDfa();
+        this.prefilter = pattern.prefilter();
+        this.utf8 = pattern.isUtf8();
+
+        clist = new SparseSet(program.size());
+        nlist = new SparseSet(program.size());
+        stack = new int[program.size() * 2 + 1];   // 每条边最多压栈一次
+        cstart = new int[program.size()];
+        nstart = new int[program.size()];
+
+        threads = new ThreadList(program.size());
+        nextThreads = new ThreadList(program.size());
+        markGeneration = new int[program.size()];
+        markStart = new int[program.size()];
+        Arrays.fill(markGeneration, -1);
+        foundGroups = new int[2 * (program.groupCount + 1)];
+    }
+
+    public Pattern pattern() {
+        return pattern;
+    }
+
+    /**
+     * 判断当前字符串是否能被状态机接收(贪心匹配)
+     * @param text 字符串
+     * @return 是否被接受
+     */
+    public boolean matchAll(String text){
+        checkText(text);
+        return matchAllText(utf8 ? utf8Text().encode(text) : text);
+    }
+
+    /**
+     * 判断字节数组是否能被状态机接收(贪心匹配)
+     * @param bytes
+     * @return 是否被接受
+     */
+    public boolean matchAll(byte[] bytes){
+        return matchAll(wrapArray(bytes));
+    }
+
+    /**
+     * 判断ByteBuffer中剩余的字节是否能被状态机接收(贪心匹配), 不改变buffer的位置
+     * @param buffer
+     * @return 是否被接受
+     */
+    public boolean matchAll(ByteBuffer buffer){
+        try {
+            return matchAllText(wrap(buffer, true));
+        } finally {
+            bytes.wrap(null, 0, 0);     // 不再引用调用方的缓冲区
+        }
+    }
+
+    /**
+     * 匹配字符串text中被状态机接收的字串(全匹配)
+     * @param text 需要匹配的字符串
+     * @return 能被接收的字串
+     */
+    public String[] match(String text){
+        checkText(text);
+        if (utf8){
+            ByteSequence encoded = utf8Text().encode(text);
+            collectSpans(encoded);
+            return spansToStrings(encoded);
+        }
+        collectSpans(text);
+        return spansToStrings(text);
+    }
+
+    /**
+     * 匹配字节数组中被状态机接收的字串(全匹配)
+     * @param bytes
+     * @return 能被接收的字串, 按UTF-8(UTF8模式)或ISO-8859-1解码
+     */
+    public String[] match(byte[] bytes){
+        return match(wrapArray(bytes));
+    }
+
+    /**
+     * 匹配ByteBuffer剩余字节中被状态机接收的字串(全匹配), 不改变buffer的位置
+     * @param buffer
+     * @return 能被接收的字串, 按UTF-8(UTF8模式)或ISO-8859-1解码
+     */
+    public String[] match(ByteBuffer buffer){
+        try {
+            ByteSequence text = wrap(buffer, true);
+            collectSpans(text);
+            return spansToStrings(text);
+        } finally {
+            bytes.wrap(null, 0, 0);
+        }
+    }
+
+    /**
+     * 与match的语义相同, 但只返回每个字串的起止下标, 不截取子串
+     * @param text 需要匹配的字符串
+     * @return 起点和终点成对存放: [start0, end0, start1, end1, ...], 按起点、终点排序
+     */
+    public int[] matchSpans(String text){
+        checkText(text);
+        if (utf8){
+            collectSpans(utf8Text().encode(text));
+            return spansToArray(utf8Text);
+        }
+        collectSpans(text);
+        return spansToArray(null);
+    }
+
+    /**
+     * 与match的语义相同, 但只返回每个字串在字节数组中的起止偏移, 不截取子串
+     * @param bytes
+     * @return 起点和终点成对存放, 按起点、终点排序
+     */
+    public int[] matchSpans(byte[] bytes){
+        return matchSpans(wrapArray(bytes));
+    }
+
+    /**
+     * 与match的语义相同, 但只返回每个字串相对于buffer位置的起止偏移, 不截取子串, 不改变buffer的位置
+     * @param buffer
+     * @return 起点和终点成对存放, 按起点、终点排序
+     */
+    public int[] matchSpans(ByteBuffer buffer){
+        try {
+            collectSpans(wrap(buffer, true));
+            return spansToArray(null);
+        } finally {
+            bytes.wrap(null, 0, 0);
+        }
+    }
+
+    /**
+     * 查找text中的第一个匹配
+     * @param text
+     * @return 是否找到, 找到时可以通过start、end、group读取结果
+     */
+    public boolean find(CharSequence text){
+        return find(text, 0);
+    }
+
+    /**
+     * 查找text中起点不小于from的第一个匹配(最左最长).
+     * 从上一个匹配的终点继续查找即可依次得到所有互不重叠的匹配
+     * @param text
+     * @param from 最小的起点
+     * @return 是否找到, 找到时可以通过start、end、group读取结果
+     */
+    public boolean find(CharSequence text, int from){
+        checkFrom(text, from);
+        if (utf8){
+            Utf8Text encoded = utf8Text();
+            ByteSequence sequence = encoded.encode(text);
+            return setFound(text, toCharSpan(encoded, find(sequence, encoded.toByteOffset(from), sequence.length())));
+        }
+        return setFound(text, find(text, from, text.length()));
+    }
+
+    /**
+     * 返回惰性查找text中所有互不重叠的匹配(最左最长)的迭代器, 每次调用next时才继续向后扫描,
+     * 所以只取前几个匹配时不需要扫描整个text. 每个元素都是不可变的快照.
+     * 迭代器借用本Matcher的状态集合, 两次next之间本Matcher仍可用于其他匹配, 但不能跨线程使用
+     * @param text
+     * @return
+     */
+    public Iterator<MatchResult> findIterator(CharSequence text){
+        if (text == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        return new FindIterator(text);
+    }
+
+    /**
+     * 与findIterator相同, 以顺序流的形式返回, 短路操作(如limit、findFirst、anyMatch)会提前结束扫描
+     * @param text
+     * @return
+     */
+    public Stream<MatchResult> results(CharSequence text){
+        Spliterator<MatchResult> spliterator = Spliterators.spliteratorUnknownSize(findIterator(text),
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    /**
+     * 查找text中的第一个匹配, 找到后立即返回, 不影响start、end、group的结果
+     * @param text
+     * @return 第一个匹配的快照, 没有匹配时返回null
+     */
+    public MatchResult findFirst(CharSequence text){
+        if (text == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        long span;
+        if (utf8){
+            ByteSequence sequence = utf8Text().encode(text);
+            span = toCharSpan(utf8Text, find(sequence, 0, sequence.length()));
+        } else {
+            span = find(text, 0, text.length());
+        }
+        return span < 0 ? null : new Result(pattern, text, (int) (span >>> 32), (int) span, charset());
+    }
+
+    /**
+     * 判断text中是否存在匹配(与find的结果一致), 只用DFA判断, 在第一个接收状态处停止, 不计算匹配的边界
+     * @param text
+     * @return
+     */
+    public boolean exists(CharSequence text){
+        if (text == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        return containsMatch(utf8 ? utf8Text().encode(text) : text);
+    }
+
+    /**
+     * 统计text中互不重叠的匹配(最左最长)的个数, 不创建任何对象
+     * @param text
+     * @return
+     */
+    public int count(CharSequence text){
+        if (text == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        CharSequence scanned = utf8 ? utf8Text().encode(text) : text;
+        int count = 0;
+        int position = 0;
+        while (position < scanned.length()){
+            long span = find(scanned, position, scanned.length());
+            if (span < 0){
+                break;
+            }
+            count++;
+            position = (int) span;
+        }
+        return count;
+    }
+
+    /**
+     * 查找字节数组中起点不小于from的第一个匹配(最左最长)
+     * @param bytes
+     * @param from 最小的起点
+     * @return 是否找到, 找到时可以通过start、end、group读取结果
+     */
+    public boolean find(byte[] bytes, int from){
+        return find(wrapArray(bytes), from);
+    }
+
+    /**
+     * 查找ByteBuffer剩余的字节中起点不小于from的第一个匹配(最左最长), 偏移相对于buffer的位置.
+     * 不改变buffer的位置, 在下一次find之前, 读取结果时仍会访问buffer
+     * @param buffer
+     * @param from 最小的起点
+     * @return 是否找到, 找到时可以通过start、end、group读取结果
+     */
+    public boolean find(ByteBuffer buffer, int from){
+        if (buffer == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        ByteSequence text = foundBytes.wrap(buffer, buffer.position(), buffer.remaining());
+        checkFrom(text, from);
+        return setFound(text, find(text, from, text.length()));
+    }
+
+    /**
+     * 查找text中所有互不重叠的匹配(最左最长), 只返回偏移
+     * @param text
+     * @return 起点和终点成对存放: [start0, end0, start1, end1, ...]
+     */
+    public int[] findAll(CharSequence text){
+        if (text == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        if (utf8){
+            collectFound(utf8Text().encode(text));
+            return spansToArray(utf8Text);
+        }
+        collectFound(text);
+        return spansToArray(null);
+    }
+
+    /**
+     * 查找字节数组中所有互不重叠的匹配(最左最长), 只返回偏移
+     * @param bytes
+     * @return 起点和终点成对存放
+     */
+    public int[] findAll(byte[] bytes){
+        return findAll(wrapArray(bytes));
+    }
+
+    /**
+     * 查找ByteBuffer剩余的字节中所有互不重叠的匹配(最左最长), 偏移相对于buffer的位置, 不改变buffer的位置
+     * @param buffer
+     * @return 起点和终点成对存放
+     */
+    public int[] findAll(ByteBuffer buffer){
+        try {
+            collectFound(wrap(buffer, false));
+            return spansToArray(null);
+        } finally {
+            bytes.wrap(null, 0, 0);
+        }
+    }
+
+    /**
+     * @return 最近一次find找到的匹配的起点
+     */
+    @Override
+    public int start() {
+        checkFound();
+        return foundStart;
+    }
+
+    /**
+     * @return 最近一次find找到的匹配的终点
+     */
+    @Override
+    public int end() {
+        checkFound();
+        return foundEnd;
+    }
+
+    /**
+     * @return 最近一次find找到的子串, 每次调用都会新建字符串
+     */
+    @Override
+    public String group() {
+        checkFound();
+        return substring(foundText, foundStart, foundEnd);
+    }
+
+    @Override
+    public int groupCount() {
+        return program.groupCount;
+    }
+
+    /**
+     * @param group 分组编号
+     * @return 最近一次find找到的匹配中该分组的起点, 没有参与匹配时为-1
+     */
+    @Override
+    public int start(int group) {
+        return foundGroups()[checkGroup(group, program.groupCount) * 2];
+    }
+
+    /**
+     * @param group 分组编号
+     * @return 最近一次find找到的匹配中该分组的终点, 没有参与匹配时为-1
+     */
+    @Override
+    public int end(int group) {
+        return foundGroups()[checkGroup(group, program.groupCount) * 2 + 1];
+    }
+
+    /**
+     * @param group 分组编号
+     * @return 最近一次find找到的匹配中该分组的子串, 没有参与匹配时为null
+     */
+    @Override
+    public String group(int group) {
+        int[] groups = foundGroups();
+        int start = groups[checkGroup(group, program.groupCount) * 2];
+        return start < 0 ? null : substring(foundText, start, groups[group * 2 + 1]);
+    }
+
+    /**
+     * 返回最近一次find结果的快照, 之后的find不会影响它
+     * @return
+     */
+    public MatchResult toMatchResult(){
+        checkFound();
+        CharSequence text = foundText;
+        if (text == foundBytes){        // 复用的字节序列会被下一次find改写, 快照需要自己的一份
+            text = foundBytes.subSequence(0, foundBytes.length());
+        }
+        Result result = new Result(pattern, text, foundStart, foundEnd, charset());
+        if (groupsFound){
+            result.groups = foundGroups.clone();
+        }
+        return result;
+    }
+
+    /**
+     * 最近一次find的分组位置, 第一次调用时才计算
+     * @return
+     */
+    private int[] foundGroups(){
+        checkFound();
+        if (!groupsFound){
+            if (captures == null){
+                captures = new CaptureMatcher(program, utf8);
+            }
+            captures.capture(foundText, foundStart, foundEnd, foundGroups);
+            groupsFound = true;
+        }
+        return foundGroups;
+    }
+
+    private static int checkGroup(int group, int groupCount){
+        if (group < 0 || group > groupCount){
+            throw new RuntimeException("输入有误: 分组编号超出范围.");
+        }
+        return group;
+    }
+
+    private void checkFound(){
+        if (foundText == null){
+            throw new RuntimeException("状态有误: 没有找到匹配.");
+        }
+    }
+
+    private static void checkFrom(CharSequence text, int from){
+        if (text == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        if (from < 0 || from > text.length()){
+            throw new RuntimeException("输入有误: from超出范围.");
+        }
+    }
+
+    /**
+     * 记录find的结果
+     * @param text
+     * @param span (起点 << 32 | 终点), 没有找到时为-1
+     * @return 是否找到
+     */
+    private boolean setFound(CharSequence text, long span){
+        if (span < 0){
+            foundText = null;
+            foundBytes.wrap(null, 0, 0);
+            return false;
+        }
+        foundText = text;
+        foundStart = (int) (span >>> 32);
+        foundEnd = (int) span;
+        groupsFound = false;
+        return true;
+    }
+
+    /**
+     * 从头到尾依次查找所有互不重叠的匹配, 存入spans
+     * @param text
+     */
+    private void collectFound(CharSequence text){
+        spanCount = 0;
+        int position = 0;
+        while (position < text.length()){
+            long span = find(text, position, text.length());
+            if (span < 0){
+                return;
+            }
+            addSpan((int) (span >>> 32), (int) span);
+            position = (int) span;
+        }
+    }
+
+    /**
+     * 把spans中的区间转换为成对存放的int数组
+     * @param encoded 不为空时区间是UTF-8字节偏移, 需要换算成字符下标
+     * @return
+     */
+    private int[] spansToArray(Utf8Text encoded){
+        int[] result = new int[spanCount * 2];
+        for (int i = 0; i < spanCount; i++) {
+            int start = (int) (spans[i] >>> 32);
+            int end = (int) spans[i];
+            result[i * 2] = encoded == null ? start : encoded.toCharIndex(start);
+            result[i * 2 + 1] = encoded == null ? end : encoded.toCharIndex(end);
+        }
+        return result;
+    }
+
+    /**
+     * 把UTF-8字节偏移的区间换算成字符下标的区间
+     * @param encoded
+     * @param span (起点 << 32 | 终点), 没有找到时为-1
+     * @return
+     */
+    private static long toCharSpan(Utf8Text encoded, long span){
+        if (span < 0){
+            return span;
+        }
+        return ((long) encoded.toCharIndex((int) (span >>> 32)) << 32) | encoded.toCharIndex((int) span);
+    }
+
+    private Utf8Text utf8Text(){
+        if (utf8Text == null){
+            utf8Text = new Utf8Text();
+        }
+        return utf8Text;
+    }
+
+    /**
+     * 判断字节数组中是否包含非空匹配, ^ 和 $ 分别表示开头和结尾
+     * @param bytes
+     * @return
+     */
+    public boolean containsMatch(byte[] bytes){
+        return containsMatch(wrapArray(bytes));
+    }
+
+    /**
+     * 判断ByteBuffer剩余的字节中是否包含非空匹配, 不改变buffer的位置
+     * @param buffer
+     * @return
+     */
+    public boolean containsMatch(ByteBuffer buffer){
+        try {
+            return containsMatch(wrap(buffer, false));
+        } finally {
+            bytes.wrap(null, 0, 0);
+        }
+    }
+
+    private static ByteBuffer wrapArray(byte[] bytes){
+        if (bytes == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * 让复用的字节序列指向buffer中剩余的字节
+     * @param buffer
+     * @param nonEmpty 是否要求至少有一个字节
+     * @return
+     */
+    private ByteSequence wrap(ByteBuffer buffer, boolean nonEmpty){
+        if (buffer == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        if (nonEmpty && !buffer.hasRemaining()){
+            throw new RuntimeException("输入有误: text不能为空.");
+        }
+        return bytes.wrap(buffer, buffer.position(), buffer.remaining());
+    }
+
+    private boolean matchAllText(CharSequence text){
+        MatchEvent event = beginEvent();
+        long begin = beginCall();
+        boolean matched = prefilter.startsWithPrefix(text, 0) && prefilter.mayMatch(text) && matchFromHereToEnd(text, 0);
+        endCall(event, "matchAll", text, begin);
+        return matched;
+    }
+
+    /**
+     * 按match的语义收集所有被接收的字串的区间, 按起点、终点排序后存入spans
+     * @param text
+     */
+    private void collectSpans(CharSequence text){
+        MatchEvent event = beginEvent();
+        long begin = beginCall();
+        collectAllSpans(text);
+        endCall(event, "match", text, begin);
+    }
+
+    private void collectAllSpans(CharSequence text){
+        spanCount = 0;
+        boolean startWithCaret = pattern.startWithCaret();
+        boolean endWithDollar = pattern.endWithDollar();
+        if (!prefilter.mayMatch(text)
+                || (startWithCaret && !prefilter.startsWithPrefix(text, 0))){
+            return;
+        }
+
+        if (startWithCaret && !endWithDollar){
+            matchFromHere(text, 0);
+        } else if (!startWithCaret && endWithDollar){
+            // 匹配以 $ 符号结尾的串: 从末尾往前扫描一遍, 每个接收的位置都是一个起点
+            if (dfa == null || scanBackward(text, 0, text.length(), true, false) == REVERSE_FAILED){
+                spanCount = 0;
+                scanSpans(text, true);
+            }
+        } else if (startWithCaret && endWithDollar){
+            if (matchFromHereToEnd(text, 0)){
+                addSpan(0, text.length());
+            }
+        } else {
+            scanSpans(text, false);     // 没有开始和结束符合限制的匹配
+        }
+        Arrays.sort(spans, 0, spanCount);
+    }
+
+    /**
+     * 判断text中是否包含非空匹配, ^ 和 $ 分别表示text的开头和结尾.
+     * @param text
+     * @return
+     */
+    boolean containsMatch(CharSequence text){
+        MatchEvent event = beginEvent();
+        long begin = beginCall();
+        boolean found = scanContains(text);
+        endCall(event, "containsMatch", text, begin);
+        return found;
+    }
+
+    private boolean scanContains(CharSequence text){
+        boolean startWithCaret = pattern.startWithCaret();
+        boolean endWithDollar = pattern.endWithDollar();
+        if (text.length() == 0 || !prefilter.mayMatch(text)
+                || (startWithCaret && !prefilter.startsWithPrefix(text, 0))){
+            return false;
+        }
+        if (startWithCaret && endWithDollar){
+            return matchFromHereToEnd(text, 0);
+        }
+        if (endWithDollar && dfa != null){          // 从末尾往前扫描, 通常读完匹配的部分就会进入死状态
+            int start = scanBackward(text, 0, text.length(), false, true);
+            if (start != REVERSE_FAILED){
+                return start >= 0;
+            }
+        }
+        CompiledDFA compiled = pattern.compiled();
+        if (compiled != null && (startWithCaret || !prefilter.hasPrefix())){     // 有字面前缀时跳跃查找更快
+            if (RegexMetrics.ENABLED){
+                scanned += text.length();
+            }
+            if (startWithCaret){
+                return compiled.matchPrefix(text, 0);
+            }
+            return endWithDollar ? compiled.containsToEnd(text, 0) : compiled.contains(text, 0);
+        }
+        DFA automaton = startWithCaret ? dfa : unanchoredDfa;
+        if (automaton == null || automaton.failed()){
+            return simulateContains(text, !startWithCaret, endWithDollar);
+        }
+
+        int start = automaton.start();
+        int state = start;
+        for (int i = 0; i < text.length(); i++) {
+            if (!startWithCaret && (state == start || state == LazyDFA.DEAD)){
+                i = prefilter.nextCandidate(text, i, text.length());   // 没有进行中的匹配, 跳到下一个可能的起点
+                if (i < 0){
+                    return false;
+                }
+            }
+            state = automaton.next(state, text.charAt(i));
+            if (RegexMetrics.ENABLED){
+                transitions++;
+            }
+            if (state == LazyDFA.FAILED){
+                return simulateContains(text, !startWithCaret, endWithDollar);
+            }
+            if (startWithCaret && state == LazyDFA.DEAD){
+                return false;
+            }
+            if (!endWithDollar && LazyDFA.isAccepting(state)){
+                return true;
+            }
+        }
+        return endWithDollar && LazyDFA.isAccepting(state);
+    }
+
+    /**
+     * 从from开始找出下一个包含匹配的行, 供FileScanner在映射的文件上使用.
+     * 行以 \n 或 \r\n 结尾, 行尾不参与匹配, ^ 和 $ 分别表示行首和行尾, 与对每一行调用containsMatch的结果相同.
+     * 不含必需字面串的行整行跳过; 其余的行用DFA从行首读到行尾, 读一遍就同时确定了行尾和是否匹配.
+     * DFA状态过多或者只用NFA模拟时, 找到行尾后再对这一行调用containsMatch的逻辑
+     * @param region 按字节读入的区域
+     * @param from 某一行的行首
+     * @return (行首 << 32 | 行尾), 行尾不包含换行符, 没有时返回-1
+     */
+    long nextMatchingLine(ByteSequence region, int from){
+        MatchEvent event = beginEvent();
+        long begin = beginCall();
+        long line = scanLines(region, from);
+        endCall(event, "scanLines", region, begin);
+        return line;
+    }
+
+    private long scanLines(ByteSequence region, int from){
+        boolean startWithCaret = pattern.startWithCaret();
+        boolean endWithDollar = pattern.endWithDollar();
+        DFA automaton = startWithCaret ? dfa : unanchoredDfa;
+        int length = region.length();
+        int lineStart = from;
+        while (lineStart < length){
+            int candidate = prefilter.nextRequired(region, lineStart);
+            if (candidate < 0){
+                return -1;
+            }
+            for (int i = candidate - 1; i >= lineStart; i--) {     // 跳到必需字面串所在行的行首
+                if (region.charAt(i) == '\n'){
+                    lineStart = i + 1;
+                    break;
+                }
+            }
+
+            int state = automaton == null || automaton.failed() ? LazyDFA.FAILED : automaton.start();
+            boolean decided = state == LazyDFA.FAILED;      // 是否已经确定了结果, 之后只需要找到行尾
+            int i = lineStart;
+            for (; !decided && i < length && !isLineEnd(region, i); i++) {
+                state = automaton.next(state, region.charAt(i));
+                if (RegexMetrics.ENABLED){
+                    transitions++;
+                }
+                decided = state == LazyDFA.FAILED || (startWithCaret && state == LazyDFA.DEAD)
+                        || (!endWithDollar && LazyDFA.isAccepting(state));
+            }
+            while (i < length && !isLineEnd(region, i)){
+                i++;
+            }
+            boolean matched;
+            if (state == LazyDFA.FAILED){
+                matched = scanContains(bytes.slice(region, lineStart, i));
+                bytes.wrap(null, 0, 0);
+            } else {
+                matched = i > lineStart && LazyDFA.isAccepting(state);
+            }
+            if (matched){
+                return ((long) lineStart << 32) | i;
+            }
+            lineStart = i < length && region.charAt(i) == '\r' ? i + 2 : i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @param text
+     * @param i
+     * @return 位置i是否是行尾: \n, 或者 \n 之前、text末尾的 \r
+     */
+    private static boolean isLineEnd(CharSequence text, int i){
+        char c = text.charAt(i);
+        return c == '\n' || (c == '\r' && (i + 1 == text.length() || text.charAt(i + 1) == '\n'));
+    }
+
+    /**
+     * 查找起点在[from, limit)中的最左最长非空匹配, 匹配可以越过limit一直延伸到text末尾.
+     * ^ 表示text的开头, $ 表示text的结尾
+     * @param text
+     * @param from 最小的起点
+     * @param limit 起点的上界(不含)
+     * @return (起点 << 32 | 终点), 没有匹配时返回-1
+     */
+    long find(CharSequence text, int from, int limit){
+        MatchEvent event = beginEvent();
+        long begin = beginCall();
+        long span = findSpan(text, from, limit);
+        endCall(event, "find", text, begin);
+        return span;
+    }
+
+    private long findSpan(CharSequence text, int from, int limit){
+        if (dfa != null){
+            long span = findWithDfa(text, from, limit);
+            if (span != UNKNOWN_SPAN){
+                return span;
+            }
+        }
+        return simulateFind(text, from, limit);
+    }
+
+    /**
+     * 用DFA查找: 以 ^ 开头时从0开始取最长的匹配; 以 $ 结尾并且起点没有上界时从末尾往前扫描一遍, 最小的接收位置就是起点;
+     * 其他情况先用LeftmostDFA向前扫描, 最后一次接收的位置就是最左最长匹配的终点, 再从终点往前找到最小的起点.
+     * 向前扫描到limit之后不再加入新的起点, 已有的线程都结束时就停止, 所以分块查找时每一块不会一直读到text末尾
+     * @param text
+     * @param from 最小的起点
+     * @param limit 起点的上界(不含)
+     * @return (起点 << 32 | 终点), 没有匹配时返回-1, DFA状态过多时返回UNKNOWN_SPAN
+     */
+    private long findWithDfa(CharSequence text, int from, int limit){
+        boolean startWithCaret = pattern.startWithCaret();
+        boolean endWithDollar = pattern.endWithDollar();
+        int length = text.length();
+        if (from >= limit){
+            return -1;
+        }
+        if (startWithCaret){
+            if (from > 0 || !prefilter.startsWithPrefix(text, 0)){
+                return -1;
+            }
+            if (dfa.failed()){
+                return UNKNOWN_SPAN;
+            }
+            int end = -1;
+            int state = dfa.start();
+            for (int i = 0; i < length; i++) {
+                state = dfa.next(state, text.charAt(i));
+                if (RegexMetrics.ENABLED){
+                    transitions++;
+                }
+                if (state == LazyDFA.FAILED){
+                    return UNKNOWN_SPAN;
+                }
+                if (state == LazyDFA.DEAD){
+                    break;
+                }
+                if (LazyDFA.isAccepting(state) && (!endWithDollar || i + 1 == length)){
+                    end = i + 1;
+                }
+            }
+            return end;         // 起点为0
+        }
+        if (endWithDollar && limit == length){
+            int start = scanBackward(text, from, length, false, false);
+            if (start == REVERSE_FAILED){
+                return UNKNOWN_SPAN;
+            }
+            return start < 0 ? -1 : ((long) start << 32) | length;
+        }
+
+        if (leftmostDfa == null){
+            leftmostDfa = pattern.leftmostDfa();
+        }
+        if (leftmostDfa.failed()){
+            return UNKNOWN_SPAN;
+        }
+        int start = leftmostDfa.start();
+        int state = start;
+        int end = -1;
+        int i = from;
+        for (; i < limit; i++) {
+            if (state == start){
+                i = prefilter.nextCandidate(text, i, limit);    // 没有进行中的线程, 跳到下一个可能的起点
+                if (i < 0){
+                    return -1;
+                }
+            }
+            state = leftmostDfa.next(state, text.charAt(i));
+            if (RegexMetrics.ENABLED){
+                transitions++;
+            }
+            if (state == LazyDFA.FAILED){
+                return UNKNOWN_SPAN;
+            }
+            if (state == LazyDFA.DEAD){         // 找到匹配后不再加入起点, 线程都已结束
+                break;
+            }
+            if (LazyDFA.isAccepting(state) && (!endWithDollar || i + 1 == length)){
+                end = i + 1;
+            }
+        }
+        if (i >= limit){
+            state = leftmostDfa.stop(state);    // 到达起点的上界, 之后只跟踪已有的线程
+            for (; i < length && state != LazyDFA.DEAD && state != LazyDFA.FAILED; i++) {
+                state = leftmostDfa.next(state, text.charAt(i));
+                if (RegexMetrics.ENABLED){
+                    transitions++;
+                }
+                if (state != LazyDFA.FAILED && LazyDFA.isAccepting(state) && (!endWithDollar || i + 1 == length)){
+                    end = i + 1;
+                }
+            }
+            if (state == LazyDFA.FAILED){
+                return UNKNOWN_SPAN;
+            }
+        }
+        if (end < 0){
+            return -1;
+        }
+        int first = scanBackward(text, from, end, false, false);
+        if (first == REVERSE_FAILED){
+            return UNKNOWN_SPAN;
+        }
+        return ((long) first << 32) | end;
+    }
+
+    /**
+     * 从end往前用反转的DFA扫描, 直到from或者进入死状态, 找出使[i, end)能被接收的起点i
+     * @param text
+     * @param from 最小的起点
+     * @param end 匹配的终点
+     * @param collect 为真时把每个[i, end)存入spans
+     * @param any 为真时找到一个起点就返回
+     * @return 最小的起点(any为真时是找到的第一个), 没有时返回-1, DFA状态过多时返回REVERSE_FAILED
+     */
+    private int scanBackward(CharSequence text, int from, int end, boolean collect, boolean any){
+        if (reverseDfa == null){
+            reverseDfa = pattern.reverseDfa();
+        }
+        if (reverseDfa.failed()){
+            return REVERSE_FAILED;
+        }
+        int found = -1;
+        int state = reverseDfa.start();
+        for (int i = end - 1; i >= from; i--) {
+            state = reverseDfa.next(state, text.charAt(i));
+            if (RegexMetrics.ENABLED){
+                transitions++;
+            }
+            if (state == LazyDFA.FAILED){
+                return REVERSE_FAILED;
+            }
+            if (state == LazyDFA.DEAD){
+                break;
+            }
+            if (LazyDFA.isAccepting(state)){
+                found = i;
+                if (collect){
+                    addSpan(i, end);
+                }
+                if (any){
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * NFA模拟: 查找起点在[from, limit)中的最左最长非空匹配
+     * @param text
+     * @param from 最小的起点
+     * @param limit 起点的上界(不含)
+     * @return (起点 << 32 | 终点), 没有匹配时返回-1
+     */
+    private long simulateFind(CharSequence text, int from, int limit){
+        boolean startWithCaret = pattern.startWithCaret();
+        boolean endWithDollar = pattern.endWithDollar();
+        int length = text.length();
+        int matchStart = -1;
+        int matchEnd = -1;
+        clist.clear();
+
+        int i = from;
+        while (true){
+            if (matchStart < 0 && clist.isEmpty()){     // 没有进行中的线程, 直接跳到下一个可能的起点
+                i = i < limit ? prefilter.nextCandidate(text, i, limit) : -1;
+                if (i < 0 || i >= limit || (startWithCaret && i > 0)){
+                    break;
+                }
+            }
+            if (matchStart < 0 && i < limit && (!startWithCaret || i == 0) && prefilter.startsWithPrefix(text, i)){
+                addThread(clist, cstart, program.start, i);     // 起点最大, 加在末尾
+            }
+            if (clist.isEmpty() || i == length){
+                break;
+            }
+
+            char c = text.charAt(i++);
+            if (RegexMetrics.ENABLED){
+                scanned++;
+                visited += clist.size();
+            }
+            nlist.clear();
+            for (int k = 0; k < clist.size(); k++) {    // 线程按起点从小到大排列, 加入nlist后仍然有序
+                int pc = clist.get(k);
+                if (program.accepts(pc, c)){
+                    addThread(nlist, nstart, program.out[pc], cstart[k]);
+                }
+            }
+            SparseSet tmp = clist;
+            clist = nlist;
+            nlist = tmp;
+            int[] tmpStart = cstart;
+            cstart = nstart;
+            nstart = tmpStart;
+
+            if (endWithDollar && i < length){
+                continue;
+            }
+            for (int k = 0; k < clist.size(); k++) {
+                if (program.opcode[clist.get(k)] != Program.MATCH){
+                    continue;
+                }
+                if (matchStart < 0 || cstart[k] <= matchStart){
+                    matchStart = cstart[k];     // 更靠左或者更长的匹配
+                    matchEnd = i;
+                    int keep = k + 1;           // 起点更靠右的线程不可能再胜出
+                    while (keep < clist.size() && cstart[keep] <= matchStart){
+                        keep++;
+                    }
+                    clist.truncate(keep);
+                }
+                break;
+            }
+        }
+        return matchStart < 0 ? -1 : ((long) matchStart << 32) | matchEnd;
+    }
+
+    /**
+     * 有记录打开了匹配事件时创建事件并开始计时
+     * @return 没有打开时返回null
+     */
+    private static MatchEvent beginEvent(){
+        if (!MatchEvent.enabled()){
+            return null;
+        }
+        MatchEvent event = new MatchEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * 开始一次匹配, 打开统计时清零本次的计数
+     * @return 开始时间, 没有打开统计时为0
+     */
+    private long beginCall(){
+        if (!RegexMetrics.ENABLED){
+            return 0;
+        }
+        scanned = 0;
+        transitions = 0;
+        visited = 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * 结束一次匹配: 耗时超过阈值时提交JFR事件, 打开统计时累加计数
+     * @param event beginEvent的返回值, 可能为空
+     * @param operation 匹配方法的名称
+     * @param text 扫描的序列
+     * @param begin beginCall的返回值
+     */
+    private void endCall(MatchEvent event, String operation, CharSequence text, long begin){
+        if (event != null){
+            event.end();
+            if (event.shouldCommit()){
+                event.pattern = pattern.pattern();
+                event.operation = operation;
+                event.length = text.length();
+                event.commit();
+            }
+        }
+        if (RegexMetrics.ENABLED){
+            RegexMetrics.matched(pattern, operation, System.nanoTime() - begin, scanned + transitions, visited, transitions);
+        }
+    }
+
+    private static void checkText(String text){
+        if (text == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        if (text.length() == 0){
+            throw new RuntimeException("输入有误: text不能为空.");
+        }
+    }
+
+    /**
+     * 将扫描得到的区间截取出子串
+     * @param text
+     * @return
+     */
+    private String[] spansToStrings(CharSequence text){
+        String[] matchedStrs = new String[spanCount];
+        for (int i = 0; i < spanCount; i++) {
+            matchedStrs[i] = substring(text, (int) (spans[i] >>> 32), (int) spans[i]);
+        }
+        return matchedStrs;
+    }
+
+    /**
+     * 截取[start, end)中的文本, 字节按UTF-8(UTF8模式)或ISO-8859-1解码
+     * @param text
+     * @param start
+     * @param end
+     * @return
+     */
+    private String substring(CharSequence text, int start, int end){
+        return substring(text, start, end, charset());
+    }
+
+    private static String substring(CharSequence text, int start, int end, Charset charset){
+        if (text instanceof ByteSequence){
+            return ((ByteSequence) text).toString(start, end, charset);
+        }
+        return text.subSequence(start, end).toString();
+    }
+
+    private Charset charset(){
+        return utf8 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+    }
+
+    /**
+     * 单遍扫描: 从左到右读一遍text, 在每个位置都加入开始结点, 每个线程记住自己的起点,
+     * 所以不需要在每个起点重新扫描. 相同结点、相同起点的线程只保留一个.
+     * 有字面前缀时只在前缀出现的位置加入开始结点, 没有线程时直接跳到下一次出现的位置.
+     * 结果以 (起点 << 32 | 终点) 的形式存入spans.
+     * @param text
+     * @param toEnd 为真时只保留在text末尾结束的匹配
+     */
+    private void scanSpans(CharSequence text, boolean toEnd){
+        spanCount = 0;
+        threads.clear();
+        int from = prefilter.nextCandidate(text, 0, text.length());
+        if (from < 0){
+            return;
+        }
+        nextGeneration();
+        addThread(threads, program.start, from);
+
+        for (int i = from; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (RegexMetrics.ENABLED){
+                scanned++;
+                visited += threads.size;
+            }
+            nextThreads.clear();
+            nextGeneration();
+            for (int k = 0; k < threads.size; k++) {    // 线程按起点从小到大排列, 加入nextThreads后仍然有序
+                int pc = threads.pc[k];
+                if (program.accepts(pc, c)){
+                    addThread(nextThreads, program.out[pc], threads.start[k]);
+                }
+            }
+            if (!toEnd || i == text.length() - 1){
+                addSpans(nextThreads, i + 1);
+            }
+            if (i + 1 < text.length() && prefilter.startsWithPrefix(text, i + 1)){
+                addThread(nextThreads, program.start, i + 1);  // 起点最大, 加在末尾
+            }
+            ThreadList tmp = threads;
+            threads = nextThreads;
+            nextThreads = tmp;
+
+            if (threads.size == 0){
+                int next = prefilter.nextCandidate(text, i + 1, text.length());
+                if (next < 0 || next >= text.length()){
+                    return;
+                }
+                nextGeneration();
+                addThread(threads, program.start, next);
+                i = next - 1;
+            }
+        }
+    }
+
+    /**
+     * 记录所有处于接收状态的线程对应的匹配区间
+     * @param list
+     * @param end 匹配终点
+     */
+    private void addSpans(ThreadList list, int end){
+        int lastStart = -1;
+        for (int k = 0; k < list.size; k++) {
+            int start = list.start[k];
+            if (program.opcode[list.pc[k]] == Program.MATCH && start != lastStart){
+                addSpan(start, end);
+                lastStart = start;
+            }
+        }
+    }
+
+    private void addSpan(int start, int end){
+        if (spanCount == spans.length){
+            spans = Arrays.copyOf(spans, spanCount * 2);
+        }
+        spans[spanCount++] = ((long) start << 32) | end;
+    }
+
+    /**
+     * 进入下一代线程, 使上一代的去重标记失效
+     */
+    private void nextGeneration(){
+        if (++generation == Integer.MAX_VALUE){
+            generation = 0;
+            Arrays.fill(markGeneration, -1);
+        }
+    }
+
+    /**
+     * 把(结点pc及其epsilon闭包, 起点start)加入线程列表, NFA有闭包表时直接加入表中的位置
+     * 同一代中起点是递增加入的, 所以只需记住每个结点最后加入的起点即可去重.
+     * @param list 线程列表
+     * @param pc 结点编号
+     * @param start 线程的起点
+     */
+    private void addThread(ThreadList list, int pc, int start){
+        if (program.follow != null){
+            for (int k = program.followStart[pc], end = program.followStart[pc + 1]; k < end; k++) {
+                int next = program.follow[k];
+                if (markGeneration[next] == generation && markStart[next] == start){
+                    continue;
+                }
+                markGeneration[next] = generation;
+                markStart[next] = start;
+                list.add(next, start);
+                if (RegexMetrics.ENABLED){
+                    visited++;
+                }
+            }
+            return;
+        }
+        int top = 0;
+        stack[top++] = pc;
+        while (top > 0){
+            pc = stack[--top];
+            if (markGeneration[pc] == generation && markStart[pc] == start){
+                continue;
+            }
+            markGeneration[pc] = generation;
+            markStart[pc] = start;
+            list.add(pc, start);
+            if (RegexMetrics.ENABLED){
+                visited++;
+            }
+            if (program.opcode[pc] == Program.EPSILON){
+                if (program.out2[pc] != Program.NONE){
+                    stack[top++] = program.out2[pc];
+                }
+                if (program.out[pc] != Program.NONE){
+                    stack[top++] = program.out[pc];
+                }
+            }
+        }
+    }
+
+    /**
+     * 贪心匹配, 把text中从from开始且符合正则表达式的字串的区间都存入spans
+     * @param text
+     * @param from 开始匹配的位置
+     */
+    private void matchFromHere(CharSequence text, int from){
+        if (dfa == null || dfa.failed()){
+            simulateFromHere(text, from);
+            return;
+        }
+
+        int state = dfa.start();
+        for (int i = from; i < text.length(); i++) {
+            state = dfa.next(state, text.charAt(i));
+            if (RegexMetrics.ENABLED){
+                transitions++;
+            }
+            if (state == LazyDFA.FAILED){       // DFA状态过多, 退回NFA模拟
+                spanCount = 0;
+                simulateFromHere(text, from);
+                return;
+            }
+            if (state == LazyDFA.DEAD){
+                break;
+            }
+            if (LazyDFA.isAccepting(state)){
+                addSpan(from, i + 1);
+            }
+        }
+    }
+
+    /**
+     * 必须从from遍历完text后处于接收状态才返回真
+     * @param text
+     * @param from 开始匹配的位置
+     * @return
+     */
+    private boolean matchFromHereToEnd(CharSequence text, int from){
+        if (dfa == null || dfa.failed()){
+            return simulateFromHereToEnd(text, from);
+        }
+        CompiledDFA compiled = pattern.compiled();
+        if (compiled != null){
+            if (RegexMetrics.ENABLED){
+                scanned += text.length() - from;
+            }
+            return compiled.matchToEnd(text, from);
+        }
+        int state = dfa.start();
+        for (int i = from; i < text.length(); i++) {
+            state = dfa.next(state, text.charAt(i));
+            if (RegexMetrics.ENABLED){
+                transitions++;
+            }
+            if (state == LazyDFA.FAILED){
+                return simulateFromHereToEnd(text, from);
+            }
+            if (state == LazyDFA.DEAD){
+                return false;
+            }
+        }
+        return LazyDFA.isAccepting(state);
+    }
+
+    /**
+     * NFA模拟: 把text中从from开始且符合正则表达式的字串的区间都存入spans
+     * @param text
+     * @param from 开始匹配的位置
+     */
+    private void simulateFromHere(CharSequence text, int from){
+        clist.clear();
+        addThread(clist, program.start);
+
+        for (int i = from; i < text.length(); i++) {
+            step(text.charAt(i));
+            if (clist.isEmpty()){
+                break;
+            }
+            if (hasAccepted(clist)){
+                addSpan(from, i + 1);
+            }
+        }
+    }
+
+    /**
+     * NFA模拟: 必须从from遍历完text后处于接收状态才返回真
+     * @param text
+     * @param from 开始匹配的位置
+     * @return
+     */
+    private boolean simulateFromHereToEnd(CharSequence text, int from){
+        clist.clear();
+        addThread(clist, program.start);
+
+        for (int i = from; i < text.length(); i++) {
+            step(text.charAt(i));
+            if (clist.isEmpty()){
+                return false;
+            }
+        }
+        return hasAccepted(clist);
+    }
+
+    /**
+     * NFA模拟: 判断text中是否包含非空匹配
+     * @param text
+     * @param unanchored 是否在每个位置都加入开始结点
+     * @param toEnd 是否要求匹配在text末尾结束
+     * @return
+     */
+    private boolean simulateContains(CharSequence text, boolean unanchored, boolean toEnd){
+        clist.clear();
+        addThread(clist, program.start);
+
+        for (int i = 0; i < text.length(); i++) {
+            step(text.charAt(i));
+            if (!toEnd && hasAccepted(clist)){
+                return true;
+            }
+            if (unanchored && i + 1 < text.length()){
+                if (prefilter.startsWithPrefix(text, i + 1)){
+                    addThread(clist, program.start);    // 下一个位置也可以作为起点
+                }
+            } else if (clist.isEmpty()){
+                return false;
+            }
+        }
+        return toEnd && hasAccepted(clist);
+    }
+
+    /**
+     * 读入一个字符: 由clist计算出nlist, 然后交换两个集合
+     * @param c 输入字符
+     */
+    private void step(char c){
+        if (RegexMetrics.ENABLED){
+            scanned++;
+            visited += clist.size();
+        }
+        nlist.clear();
+        for (int i = 0; i < clist.size(); i++) {
+            int pc = clist.get(i);
+            if (program.accepts(pc, c)){
+                addThread(nlist, program.out[pc]);
+            }
+        }
+        SparseSet tmp = clist;
+        clist = nlist;
+        nlist = tmp;
+    }
+
+    /**
+     * 把结点pc及其epsilon闭包加入集合, NFA有闭包表时直接加入表中的位置
+     * @param list 状态集合
+     * @param pc 结点编号
+     */
+    private void addThread(SparseSet list, int pc){
+        if (program.follow != null){
+            for (int k = program.followStart[pc], end = program.followStart[pc + 1]; k < end; k++) {
+                int next = program.follow[k];
+                if (!list.contains(next)){
+                    list.add(next);
+                    if (RegexMetrics.ENABLED){
+                        visited++;
+                    }
+                }
+            }
+            return;
+        }
+        int top = 0;
+        stack[top++] = pc;
+        while (top > 0){
+            pc = stack[--top];
+            if (list.contains(pc)){
+                continue;
+            }
+            list.add(pc);
+            if (RegexMetrics.ENABLED){
+                visited++;
+            }
+            if (program.opcode[pc] == Program.EPSILON){
+                if (program.out2[pc] != Program.NONE){
+                    stack[top++] = program.out2[pc];
+                }
+                if (program.out[pc] != Program.NONE){
+                    stack[top++] = program.out[pc];
+                }
+            }
+        }
+    }
+
+    /**
+     * 把结点pc及其epsilon闭包加入集合, 已经在集合中的结点保留起点更小的线程, NFA有闭包表时直接加入表中的位置
+     * @param list 状态集合
+     * @param starts 线程起点, 下标与list一致
+     * @param pc 结点编号
+     * @param start 线程起点
+     */
+    private void addThread(SparseSet list, int[] starts, int pc, int start){
+        if (program.follow != null){
+            for (int k = program.followStart[pc], end = program.followStart[pc + 1]; k < end; k++) {
+                int next = program.follow[k];
+                if (!list.contains(next)){
+                    starts[list.size()] = start;
+                    list.add(next);
+                    if (RegexMetrics.ENABLED){
+                        visited++;
+                    }
+                }
+            }
+            return;
+        }
+        int top = 0;
+        stack[top++] = pc;
+        while (top > 0){
+            pc = stack[--top];
+            if (list.contains(pc)){
+                continue;
+            }
+            starts[list.size()] = start;
+            list.add(pc);
+            if (RegexMetrics.ENABLED){
+                visited++;
+            }
+            if (program.opcode[pc] == Program.EPSILON){
+                if (program.out2[pc] != Program.NONE){
+                    stack[top++] = program.out2[pc];
+                }
+                if (program.out[pc] != Program.NONE){
+                    stack[top++] = program.out[pc];
+                }
+            }
+        }
+    }
+
+    /**
+     * 判断集合中是否有接收状态
+     * @param list 当前所处状态集合
+     * @return
+     */
+    private boolean hasAccepted(SparseSet list){
+        for (int i = 0; i < list.size(); i++) {
+            if (program.opcode[list.get(i)] == Program.MATCH){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 惰性查找的迭代器, hasNext时才查找下一个匹配.
+     * UTF8模式下text只编码一次, 编码结果由迭代器自己持有, 不受本Matcher其他匹配的影响
+     */
+    private final class FindIterator implements Iterator<MatchResult> {
+        private static final long UNSEARCHED = -2;
+        private final CharSequence text;
+        private final CharSequence scanned;     // 实际扫描的序列, UTF8模式下是编码后的字节
+        private final Utf8Text encoded;         // UTF8模式下把字节偏移换算成字符下标
+        private int position;                   // 下一次查找的起点, 是scanned中的偏移
+        private long next = UNSEARCHED;         // 已经找到但还没有返回的匹配, 没有更多匹配时为-1
+
+        FindIterator(CharSequence text){
+            this.text = text;
+            this.encoded = utf8 ? new Utf8Text() : null;
+            this.scanned = utf8 ? encoded.encode(text) : text;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == UNSEARCHED){
+                next = position < scanned.length() ? find(scanned, position, scanned.length()) : -1;
+            }
+            return next >= 0;
+        }
+
+        @Override
+        public MatchResult next() {
+            if (!hasNext()){
+                throw new NoSuchElementException();
+            }
+            long span = next;
+            position = (int) span;      // 匹配非空, 下一次一定向后推进
+            next = UNSEARCHED;
+            if (encoded != null){
+                span = toCharSpan(encoded, span);
+            }
+            return new Result(pattern, text, (int) (span >>> 32), (int) span, charset());
+        }
+    }
+
+    /**
+     * 不可变的匹配结果, 由toMatchResult、findFirst和惰性查找创建.
+     * 分组位置在第一次读取时才计算, 多个线程同时读取时可能重复计算, 结果相同
+     */
+    private static final class Result implements MatchResult {
+        private final Pattern pattern;
+        private final CharSequence text;
+        private final int start;
+        private final int end;
+        private final Charset charset;
+        private volatile int[] groups;      // 分组位置, 第n组在[2n, 2n + 1]
+
+        Result(Pattern pattern, CharSequence text, int start, int end, Charset charset){
+            this.pattern = pattern;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.charset = charset;
+        }
+
+        @Override
+        public int start() {
+            return start;
+        }
+
+        @Override
+        public int end() {
+            return end;
+        }
+
+        @Override
+        public String group() {
+            return substring(text, start, end, charset);
+        }
+
+        @Override
+        public int groupCount() {
+            return pattern.program().groupCount;
+        }
+
+        @Override
+        public int start(int group) {
+            return groups()[checkGroup(group, groupCount()) * 2];
+        }
+
+        @Override
+        public int end(int group) {
+            return groups()[checkGroup(group, groupCount()) * 2 + 1];
+        }
+
+        @Override
+        public String group(int group) {
+            int[] groups = groups();
+            int start = groups[checkGroup(group, groupCount()) * 2];
+            return start < 0 ? null : substring(text, start, groups[group * 2 + 1], charset);
+        }
+
+        private int[] groups(){
+            int[] result = groups;
+            if (result == null){
+                result = new int[2 * (groupCount() + 1)];
+                new CaptureMatcher(pattern.program(), pattern.isUtf8()).capture(text, start, end, result);
+                groups = result;
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + ")";
+        }
+    }
+
+    /**
+     * 带起点的线程列表, 容量不足时自动扩容, 扩容后一直复用
+     */
+    private static final class ThreadList {
+        int[] pc;
+        int[] start;
+        int size;
+
+        ThreadList(int capacity){
+            pc = new int[capacity];
+            start = new int[capacity];
+        }
+
+        void add(int pc, int start){
+            if (size == this.pc.length){
+                this.pc = Arrays.copyOf(this.pc, size * 2);
+                this.start = Arrays.copyOf(this.start, size * 2);
+            }
+            this.pc[size] = pc;
+            this.start[size] = start;
+            size++;
+        }
+
+        void clear(){
+            size = 0;
+        }
+    }
+}
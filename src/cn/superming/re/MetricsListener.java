@@ -0,0 +1,25 @@
+package cn.superming.re;
+
+/**
+ * 统计回调接口, 通过 RegexMetrics.setListener 设置.
+ * 只有打开统计(系统属性 cn.superming.re.metrics=true)时才会被调用, 在匹配的线程中同步调用, 实现应当尽量简单
+ */
+public interface MetricsListener {
+    /**
+     * 编译完成时调用
+     * @param pattern 编译结果
+     * @param nanos 编译耗时(纳秒)
+     */
+    default void onCompile(Pattern pattern, long nanos){
+    }
+
+    /**
+     * 一次匹配(matchAll、match、containsMatch或者一次find)完成时调用
+     * @param pattern
+     * @param operation 匹配方法的名称
+     * @param chars 状态机读入的字符数, 匹配字节时是字节数
+     * @param nanos 匹配耗时(纳秒)
+     */
+    default void onMatch(Pattern pattern, String operation, long chars, long nanos){
+    }
+}
@@ -1,349 +1,477 @@
 package cn.superming.re;
 
-import java.util.Set;
-
+import java.util.Arrays;
+
+/**
+ * NFA构建器
+ * 先由Parser解析成语法树, 经过AstOptimizer化简之后再构建NFA.
+ * 结点来自可重用的结点池, 构建出的NFA在下一次构建之前必须转换成Program.
+ * 每个线程通过local()复用自己的构建器, 编译时不需要重新分配结点.
+ *
+ * 从后往前构建: 每个子树都直接连到它的后继上, 相邻的字符之间不需要空转移结点,
+ * 空转移结点只用于分支、量词和捕获分组的起止.
+ * 正则表达式中有捕获分组时, 量词 * 保持与逐个构建时相同的结构(入口和循环各一个结点), 使各条路径的优先顺序不变.
+ *
+ * 默认按UTF-16字符(char)构建, 增补字符常量拆成两个代理字符.
+ * UTF8模式下把每个字符常量和字符集都展开为UTF-8字节序列的状态机, 边上都是字节(0~255),
+ * 匹配时直接读入UTF-8字节而不需要解码.
+ */
 class NFAConstructor {
-    private Lexer lexer;
+    private static final int[] UTF8_MAX = {0x7F, 0x7FF, 0xFFFF};   // 1~3字节UTF-8编码的最大码点
+    private static final ThreadLocal<NFAConstructor> LOCAL = ThreadLocal.withInitial(NFAConstructor::new);
+
+    private final Parser parser;
     private StateNodePool nodePool;
+    private int flags;              // 编译选项
+    private boolean utf8;           // 是否构建UTF-8字节状态机
+    private boolean exact;          // 是否保持各条路径的优先顺序与逐个构建时完全相同(有捕获分组时)
+    private final CharRanges ranges = new CharRanges();     // 构建字符集时复用
+    private final int[] sequence = new int[8];              // 展开UTF-8时复用: 一个字节序列中每个字节的范围
+    private StateNode branches;     // 展开UTF-8时已经并联好的分支
+    private StateNode asciiBranch;  // 展开UTF-8时合并所有单字节分支的字符集结点
+    private StateNode branchEnd;    // 展开UTF-8时所有分支共同的尾结点
+    private int[] suffixRanges = new int[16];               // 可共享的续字节结点: 字节范围, 成对存放
+    private StateNode[] suffixNext = new StateNode[8];      // 可共享的续字节结点的下一个结点
+    private StateNode[] suffixNodes = new StateNode[8];     // 可共享的续字节结点
+    private int suffixCount;
 
     NFAConstructor(){
-        lexer = new Lexer();
+        parser = new Parser();
         nodePool = new StateNodePool();
     }
 
+    /**
+     * 当前线程的构建器
+     * @return
+     */
+    static NFAConstructor local(){
+        return LOCAL.get();
+    }
+
     /**
      * 构建状态机的接口
      * @param pair
      */
     NodePair construct(String regex, NodePair pair){
-        if (lexer.matchCurrentTag(Lexer.Tag.END)){  // 如果解析到头, 重启解析器.
-            lexer.restart();
-        }
+        return construct(regex, pair, 0);
+    }
 
-        lexer.setRegex(regex);  // 设置要解析的正则表达式
-        lexer.advance();        // 先处理一个字符
+    /**
+     * 构建状态机的接口
+     * @param regex
+     * @param pair
+     * @param flags 编译选项, 使用其中的 Regex.CASE_INSENSITIVE 和 Regex.UTF8
+     * @return
+     */
+    NodePair construct(String regex, NodePair pair, int flags){
+        setFlags(flags);
+        nodePool.reset(regex.length());     // 收回上一次构建用过的结点
+        return constructInPool(regex);
+    }
 
-        nodePool = new StateNodePool();
-        pair = new NodePair();
-        expression(pair);   // 构建NFA.
-        pair.endNode.setEdge(StateNode.EMPTY);  // 设置尾节点的edge为EMPTY.
+    /**
+     * 在当前结点池中继续构建, 不收回已经分配的结点
+     * @param regex
+     * @return
+     */
+    private NodePair constructInPool(String regex){
+        AstNode root = AstOptimizer.optimize(parser.parse(regex, flags));
+        exact = root.capturing;
+
+        NodePair pair = new NodePair();
+        pair.endNode = nodePool.getStateNode();
+        pair.endNode.setEdge(StateNode.EMPTY);  // 尾结点是接收状态
+        pair.startNode = construct(root, pair.endNode);
+        if (pair.startNode == pair.endNode){    // 化简后只剩空串, 保留一个开始结点
+            pair.startNode = nodePool.getStateNode();
+            pair.startNode.out = pair.endNode;
+        }
         return pair;       // 返回头结点和尾节点
     }
     /**
-     * 为单个字符构建状态机
-     * @return
+     * 为多个正则表达式构建一个合并的NFA
+     * 与expression中处理 | 的方式相同, 用新的开始结点把各个NFA并联起来,
+     * 但不合并尾结点: 每个尾结点保留为接收状态, 并记录自己所属正则表达式的编号.
+     * 可以一次构建多组, 各组分别合并, 所有结点都来自同一个结点池.
+     * @param groups 每组的正则表达式
+     * @param ids 每组中每个正则表达式的编号
+     * @param flags 编译选项, 使用其中的 Regex.CASE_INSENSITIVE 和 Regex.UTF8
+     * @return 每组合并后的头结点, 尾结点为空; 空的组头结点也为空
      */
-    private boolean constructForSingleChar(NodePair pair){
-        if (!lexer.matchCurrentTag(Lexer.Tag.L)){
-            return false;
+    NodePair[] constructUnion(String[][] groups, int[][] ids, int flags){
+        setFlags(flags);
+        int totalLength = 0;
+        for (String[] regexes : groups) {
+            for (String regex : regexes) {
+                totalLength += regex.length() + 1;      // 每个正则还需要一个并联用的结点
+            }
         }
+        nodePool.reset(totalLength);
+
+        NodePair[] unions = new NodePair[groups.length];
+        for (int g = 0; g < groups.length; g++) {
+            NodePair union = new NodePair();
+            for (int i = 0; i < groups[g].length; i++) {
+                NodePair pair = constructInPool(groups[g][i]);
+                pair.endNode.setMatchId(ids[g][i]);
+                if (union.startNode == null){
+                    union.startNode = pair.startNode;
+                    continue;
+                }
+                StateNode startNode = nodePool.getStateNode();
+                startNode.out = union.startNode;
+                startNode.out2 = pair.startNode;
+                union.startNode = startNode;
+            }
+            unions[g] = union;
+        }
+        return unions;
+    }
 
-        pair.startNode = nodePool.getStateNode();       // 左节点
-        pair.endNode = nodePool.getStateNode();         // 右节点
-        pair.startNode.out = pair.endNode;              // 左节点指向右节点
-        pair.startNode.setEdge(lexer.getCurrentChar()); // 将边设置为当前解析完的字符
-
-        lexer.advance();                            // 解析下一个字符
-        return true;
+    private void setFlags(int flags){
+        this.flags = flags;
+        utf8 = (flags & Regex.UTF8) != 0;
     }
 
     /**
-     * 为任意匹配符(.)构建状态机
-     * @return
+     * 为语法树node构建状态机, 接收完node之后转移到next
+     * @param node
+     * @param next 后继结点
+     * @return 入口结点
      */
-    private boolean constructForAny(NodePair pair){
-        if (!lexer.matchCurrentTag(Lexer.Tag.ANY)){
-            return false;
+    private StateNode construct(AstNode node, StateNode next){
+        switch (node.kind){
+            case AstNode.CHARSET:
+                return constructForSet(node.set, next);
+            case AstNode.EMPTY:
+                return next;
+            case AstNode.CONCAT:
+                for (int i = node.children.length - 1; i >= 0; i--) {
+                    next = construct(node.children[i], next);
+                }
+                return next;
+            case AstNode.ALTERNATE:
+                return constructForAlternate(node.children, next);
+            case AstNode.STAR:
+                return constructForClosure(node.children[0], next);
+            case AstNode.PLUS:
+                return constructForPlus(node.children[0], next);
+            case AstNode.OPT:
+                return constructForOpt(node.children[0], next);
+            default:
+                return constructForGroup(node, next);
         }
-
-        pair.startNode = nodePool.getStateNode();       // 左节点
-        pair.endNode = nodePool.getStateNode();         // 右节点
-        pair.startNode.out = pair.endNode;              // 左节点指向右节点
-        pair.startNode.setEdge(StateNode.CHARSET);      // 将边设置为字符集
-
-        pair.startNode.addToSet((byte) '\n');           // 不解析回车和换行符
-        pair.startNode.addToSet((byte) '\r');
-        pair.startNode.setNegation();
-
-        lexer.advance();                            // 解析下一个字符
-        return true;
     }
 
     /**
-     * 为 [...] | [.-.] | [^...] | [^.-.] 构建状态机
-     * @param pair
+     * 为一个字符集构建一个结点, 只有一个字符时构建为普通的字符边
+     * @param set 有序的闭区间
+     * @param next
      * @return
      */
-    private boolean constructForCharSet(NodePair pair){
-        if (!lexer.matchCurrentTag(Lexer.Tag.SQUARE_LEFT)){
-            return false;
+    private StateNode constructForSet(int[] set, StateNode next){
+        if (utf8){
+            ranges.clear();
+            for (int i = 0; i < set.length; i += 2) {
+                ranges.add(set[i], set[i + 1]);
+            }
+            return constructForUtf8(ranges, next);
         }
-
-        lexer.advance();        // 跳过 [ 符号, 解析下一个字符
-
-        boolean isCaret = false;    // 判断是否 ^ 符号
-        if (lexer.matchCurrentTag(Lexer.Tag.CARET)){
-            isCaret = true;
-            lexer.advance();
+        StateNode node = nodePool.getStateNode();
+        node.out = next;
+        if (set.length == 2 && set[0] == set[1]){
+            node.setEdge(set[0]);                       // 将边设置为字符
+            return node;
         }
-
-        pair.startNode = nodePool.getStateNode();       // 左节点
-        pair.endNode = nodePool.getStateNode();         // 右节点
-        pair.startNode.out = pair.endNode;              // 左节点指向右节点
-        pair.startNode.setEdge(StateNode.CHARSET);      // 将边设置为字符集
-
-        if (lexer.matchCurrentTag(Lexer.Tag.SQUARE_RIGHT)){
-            throw new RuntimeException("非法输入: 方括号内无内容.");
+        node.setEdge(StateNode.CHARSET);                // 将边设置为字符集
+        for (int i = 0; i < set.length; i += 2) {
+            node.addToSet(set[i], set[i + 1]);
         }
+        return node;
+    }
 
-        doInBrackets(pair.startNode.inputSet);       // 方括号中内容处理
-        if (isCaret){                                // 如果有^符号, 将字符集中内容取反
-            pair.startNode.setNegation();
+    /**
+     * 把字符集展开为UTF-8字节序列的并联: 每个分支依次接收序列中每个位置上的字节范围,
+     * 所有单字节(ASCII)的分支合并成一个字符集结点, 字节范围和后继都相同的续字节结点在分支之间共享.
+     * @param set 字符集, 不包含代理字符
+     * @param next 所有分支共同的后继
+     * @return 入口结点
+     */
+    private StateNode constructForUtf8(CharRanges set, StateNode next){
+        branches = null;
+        asciiBranch = null;
+        branchEnd = next;
+        suffixCount = 0;
+        int[] array = set.toArray();
+        for (int i = 0; i < array.length; i += 2) {
+            splitUtf8(array[i], array[i + 1]);
         }
 
-        lexer.advance();
-        return true;
+        if (asciiBranch != null && asciiBranch.inputSet.isSingle()){
+            int c = asciiBranch.inputSet.max();         // 只有一个ASCII字符, 改为普通的字符边
+            asciiBranch.inputSet.clear();
+            asciiBranch.setEdge(c);
+        }
+        if (branches == null){                          // 空集: 不接收任何字节
+            branches = nodePool.getStateNode();
+            branches.setEdge(StateNode.CHARSET);
+            branches.out = branchEnd;
+        }
+        return branches;
     }
 
     /**
-     * 处理方括号内部的内容
-     * @param set
+     * 把码点区间[lo, hi]切分成若干段, 使每段的UTF-8编码长度相同, 且每个字节位置上的取值构成连续的范围
+     * @param lo
+     * @param hi
      */
-    private void doInBrackets(Set<Byte> set){
-        int beforeDash = 0;
-        while (!lexer.matchCurrentTag(Lexer.Tag.SQUARE_RIGHT)){     // 当解析到右方括号时结束
-            if (lexer.matchCurrentTag(Lexer.Tag.END)){              // 没有遇到右方括号但正则表达式已经解析结束
-                throw new RuntimeException("非法输入：没有右方括号.");
+    private void splitUtf8(int lo, int hi){
+        for (int max : UTF8_MAX) {                      // 先按编码长度切开
+            if (lo <= max && hi > max){
+                splitUtf8(lo, max);
+                splitUtf8(max + 1, hi);
+                return;
             }
+        }
+        if (hi <= UTF8_MAX[0]){
+            addAsciiBranch(lo, hi);
+            return;
+        }
 
-            if (!lexer.matchCurrentTag(Lexer.Tag.DASH)){            // 如果不是 - 号, 就将字符加入字符集
-                beforeDash = lexer.getCurrentChar();
-                set.add((byte)beforeDash);
-            } else {                                                // 如果是 - 号, 将 - 符号左右两边的字符之间的字符加入字符集和
-                lexer.advance();  // 跳过 - 号
-                if (beforeDash == 0){
-                    throw new RuntimeException("非法输入: -号前没有字符.");
+        int length = utf8Length(lo);
+        for (int i = 1; i < length; i++) {
+            int mask = (1 << (6 * i)) - 1;              // 低i个续字节
+            if ((lo & ~mask) != (hi & ~mask)){
+                if ((lo & mask) != 0){                  // lo的低位不全为0, 切出 [lo, lo|mask]
+                    splitUtf8(lo, lo | mask);
+                    splitUtf8((lo | mask) + 1, hi);
+                    return;
                 }
-                if (lexer.matchCurrentTag(Lexer.Tag.L)) {
-                    for (int c = beforeDash + 1; c <= lexer.getCurrentChar(); c++) {
-                        set.add((byte) c);
-                    }
-                } else {
-                    throw new RuntimeException("非法输入: -号后是非法字符.");
+                if ((hi & mask) != mask){               // hi的低位不全为1, 切出 [hi&~mask, hi]
+                    splitUtf8(lo, (hi & ~mask) - 1);
+                    splitUtf8(hi & ~mask, hi);
+                    return;
                 }
             }
-            lexer.advance();
         }
-    }
 
-    /**
-     * 为 * 构建状态机
-     * @param pair
-     * @return
-     */
-    private boolean constructForClosure(NodePair pair){
-        /*                       ----------------ε--------------
-         *                      \|/          ----------         |
-         *    startNode--->pair.startNode--->|        |--->pair.endNode--->endNode
-         *        |                          ----------                      /|\
-         *        -------------------------------ε----------------------------
-         */
-        if (!lexer.matchCurrentTag(Lexer.Tag.CLOSURE)){
-            return false;
+        for (int k = 0; k < length; k++) {
+            sequence[k * 2] = utf8Byte(lo, length, k);
+            sequence[k * 2 + 1] = utf8Byte(hi, length, k);
         }
+        addBranch(length);
+    }
 
-        StateNode startNode = nodePool.getStateNode();
-        StateNode endNode = nodePool.getStateNode();
-
-        pair.endNode.out = pair.startNode;
-
-        startNode.out = pair.startNode;
-        pair.endNode.out2 = endNode;
-
-        startNode.out2 = endNode;
-
-        pair.startNode = startNode;
-        pair.endNode = endNode;
-
-        lexer.advance();
-        return true;
+    private void addAsciiBranch(int lo, int hi){
+        if (asciiBranch == null){
+            asciiBranch = nodePool.getStateNode();
+            asciiBranch.setEdge(StateNode.CHARSET);
+            asciiBranch.out = branchEnd;
+            addBranch(asciiBranch);
+        }
+        asciiBranch.addToSet(lo, hi);
     }
 
     /**
-     * 为 + 构建状态机
-     * @param pair
-     * @return
+     * 为sequence中的字节序列构建一条分支
+     * @param length 序列中的字节数
      */
-    private boolean constructForPlus(NodePair pair){
-        /*                       ----------------ε--------------
-         *                      \|/          ----------         |
-         *    startNode--->pair.startNode--->|        |--->pair.endNode--->endNode
-         *                                   ----------
-         */
-        if (!lexer.matchCurrentTag(Lexer.Tag.PLUS)){
-            return false;
+    private void addBranch(int length){
+        StateNode next = branchEnd;
+        for (int k = length - 1; k >= 0; k--) {
+            int lo = sequence[k * 2];
+            int hi = sequence[k * 2 + 1];
+            StateNode node = k > 0 ? findSuffix(lo, hi, next) : null;
+            if (node == null){
+                node = nodePool.getStateNode();
+                if (lo == hi){
+                    node.setEdge(lo);
+                } else {
+                    node.setEdge(StateNode.CHARSET);
+                    node.addToSet(lo, hi);
+                }
+                node.out = next;
+                if (k > 0){                             // 首字节结点是分支的入口, 不共享
+                    addSuffix(lo, hi, next, node);
+                }
+            }
+            next = node;
         }
+        addBranch(next);
+    }
 
-        StateNode startNode = nodePool.getStateNode();
-        StateNode endNode = nodePool.getStateNode();
-
-        pair.endNode.out = pair.startNode;
-
-        startNode.out = pair.startNode;
-        pair.endNode.out2 = endNode;
-
-        pair.startNode = startNode;
-        pair.endNode = endNode;
+    private StateNode findSuffix(int lo, int hi, StateNode next){
+        for (int i = 0; i < suffixCount; i++) {
+            if (suffixNext[i] == next && suffixRanges[i * 2] == lo && suffixRanges[i * 2 + 1] == hi){
+                return suffixNodes[i];
+            }
+        }
+        return null;
+    }
 
-        lexer.advance();
-        return true;
+    private void addSuffix(int lo, int hi, StateNode next, StateNode node){
+        if (suffixCount == suffixNodes.length){
+            suffixRanges = Arrays.copyOf(suffixRanges, suffixCount * 4);
+            suffixNext = Arrays.copyOf(suffixNext, suffixCount * 2);
+            suffixNodes = Arrays.copyOf(suffixNodes, suffixCount * 2);
+        }
+        suffixRanges[suffixCount * 2] = lo;
+        suffixRanges[suffixCount * 2 + 1] = hi;
+        suffixNext[suffixCount] = next;
+        suffixNodes[suffixCount] = node;
+        suffixCount++;
     }
 
     /**
-     * 为 ? 构建状态机
-     * @param pair
-     * @return
+     * 用空转移结点把分支并联到已有的分支上
+     * @param branch
      */
-    private boolean constructForOpt(NodePair pair){
-        /*
-         *                                   ----------
-         *    startNode--->pair.startNode--->|        |--->pair.endNode--->endNode
-         *        |                          ----------                      /|\
-         *        -------------------------------ε----------------------------
-         */
-        if (!lexer.matchCurrentTag(Lexer.Tag.OPT)){
-            return false;
+    private void addBranch(StateNode branch){
+        if (branches == null){
+            branches = branch;
+            return;
         }
+        StateNode split = nodePool.getStateNode();
+        split.out = branches;
+        split.out2 = branch;
+        branches = split;
+    }
 
-        StateNode startNode = nodePool.getStateNode();
-        StateNode endNode = nodePool.getStateNode();
-
-        startNode.out = pair.startNode;
-        pair.endNode.out = endNode;
-
-        startNode.out2 = endNode;
-
-        pair.startNode = startNode;
-        pair.endNode = endNode;
-
-        lexer.advance();
-        return true;
+    private static int utf8Length(int c){
+        return c <= UTF8_MAX[0] ? 1 : c <= UTF8_MAX[1] ? 2 : c <= UTF8_MAX[2] ? 3 : 4;
     }
 
-    private boolean constructForInParenExpression(NodePair pair){
-        if (!lexer.matchCurrentTag(Lexer.Tag.PAREN_LEFT)){ // 判断是否是(符号
-            return false;
+    /**
+     * 返回码点c的UTF-8编码中的第k个字节
+     * @param c 码点
+     * @param length 编码长度
+     * @param k 字节下标
+     * @return
+     */
+    private static int utf8Byte(int c, int length, int k){
+        if (k > 0){
+            return 0x80 | ((c >> (6 * (length - 1 - k))) & 0x3F);
         }
-        lexer.advance();    // 解析下一个字符
-        expression(pair);   // 为()中的内容构建NFA.
-        if (lexer.matchCurrentTag(Lexer.Tag.PAREN_RIGHT)){  // 判断是否是)符号
-            lexer.advance();
-        } else {
-            throw new RuntimeException("非法输入: 缺失右圆括号.");
+        switch (length){
+            case 1:
+                return c;
+            case 2:
+                return 0xC0 | (c >> 6);
+            case 3:
+                return 0xE0 | (c >> 12);
+            default:
+                return 0xF0 | (c >> 18);
         }
-        return true;
     }
 
     /**
-     * 最高优先级调用
-     * @param pair
+     * 为 | 构建状态机, 前面的分支优先
+     * @param children
+     * @param next
+     * @return
      */
-    private void firstLevelConstruct(NodePair pair){
+    private StateNode constructForAlternate(AstNode[] children, StateNode next){
         /*
-         * firstLevel -> singleChar | . | [...] | (expression)
+         *    split--->children[0]--->next
+         *      |
+         *      ---->split--->children[1]--->next
+         *             |
+         *             ---->children[2]--->next
          */
-        boolean handled = constructForInParenExpression(pair);
-        if (!handled){
-            handled = constructForSingleChar(pair);
-        }
-        if (!handled){
-            handled = constructForAny(pair);
-        }
-        if (!handled){
-            handled = constructForCharSet(pair);
+        StateNode entry = construct(children[children.length - 1], next);
+        for (int i = children.length - 2; i >= 0; i--) {
+            StateNode split = nodePool.getStateNode();
+            split.out = construct(children[i], next);
+            split.out2 = entry;
+            entry = split;
         }
+        return entry;
     }
 
     /**
-     * 次高优先级调用
-     * @param pair
+     * 为 * 构建状态机
+     * @param child
+     * @param next
+     * @return
      */
-    private void secondLevelConstruct(NodePair pair){
+    private StateNode constructForClosure(AstNode child, StateNode next){
         /*
-         *  secondLevel -> firstLevel* | firstLevel+ | firstLevel?
+         *         ------ε------
+         *       \|/           |
+         *    loop--->child-----
+         *      |
+         *      ------ε---->next
          */
-        firstLevelConstruct(pair);
-
-        boolean handled = constructForClosure(pair);
-        if (!handled){
-            handled = constructForPlus(pair);
-        }
-        if (!handled){
-            handled = constructForOpt(pair);
+        StateNode loop = nodePool.getStateNode();
+        StateNode entry = construct(child, loop);
+        loop.out = entry;
+        loop.out2 = next;
+        if (!exact){
+            return loop;
         }
+        StateNode startNode = nodePool.getStateNode();  // 从入口和从循环回来时分别经过不同的结点
+        startNode.out = entry;
+        startNode.out2 = next;
+        return startNode;
     }
 
-    private void expression(NodePair pair) {
+    /**
+     * 为 + 构建状态机
+     * @param child
+     * @param next
+     * @return
+     */
+    private StateNode constructForPlus(AstNode child, StateNode next){
         /*
-         * expression -> concat_expression
-         * expression -> concat_expression | concat_expression
+         *      -------ε------
+         *     \|/           |
+         *    child--->loop----
+         *               |
+         *               ---ε--->next
          */
-        concatExpression(pair);
-
-        while (lexer.matchCurrentTag(Lexer.Tag.OR)){
-            lexer.advance();                        // 解析下一字符
-            NodePair localPair = new NodePair();
-
-            concatExpression(localPair);
-            // 处理指针
-            StateNode startNode = nodePool.getStateNode();
-            StateNode endNode = nodePool.getStateNode();
-
-            startNode.out = pair.startNode;
-            startNode.out2 = localPair.startNode;
-
-            pair.endNode.out = endNode;
-            localPair.endNode.out = endNode;
-
-            pair.startNode = startNode;
-            pair.endNode = endNode;
-        }
+        StateNode loop = nodePool.getStateNode();
+        StateNode entry = construct(child, loop);
+        loop.out = entry;
+        loop.out2 = next;
+        return entry;
     }
 
-    private void concatExpression(NodePair pair) {
+    /**
+     * 为 ? 构建状态机
+     * @param child
+     * @param next
+     * @return
+     */
+    private StateNode constructForOpt(AstNode child, StateNode next){
         /*
-         * concatExpression -> secondLevelConstruct·secondLevelConstruct
-         * concatExpression -> concatExpression·secondLevelConstruct
+         *    split--->child--->next
+         *      |                /|\
+         *      --------ε---------
          */
-        if (isLegal(lexer.getCurrentTag())){    // 判断字符是否合法
-            secondLevelConstruct(pair);
-        }
-
-        // 只要后面的字符与前面的可以直接连接,就继续
-        while (isLegal(lexer.getCurrentTag())){
-            NodePair localPair = new NodePair();
-            secondLevelConstruct(localPair);
-            pair.endNode.out = localPair.startNode;
-            pair.endNode = localPair.endNode;
-        }
+        StateNode split = nodePool.getStateNode();
+        split.out = construct(child, next);
+        split.out2 = next;
+        return split;
     }
 
-    private boolean isLegal(Lexer.Tag tag){
-        switch (tag){
-            case DOLLAR:
-            case PAREN_RIGHT:
-            case OR:
-            case END:
-                return false;
-            case CLOSURE:
-            case PLUS:
-            case OPT:
-                throw new RuntimeException("非法输入: " + lexer.getCurrentChar() + "应该放在表达式末尾.");
-            case CARET:
-                throw new RuntimeException(lexer.getCurrentChar() + "应该放在整个表达式开头.");
-            case SQUARE_RIGHT:
-                throw new RuntimeException("非法输入: 不能以" + lexer.getCurrentChar() + "开头.");
-        }
-        return true;
+    /**
+     * 为捕获分组构建状态机
+     * 在内容前后各加一个空转移结点, 经过时分别记录分组的起点和终点;
+     * 这两个结点只有一条出边, 对于不关心分组的DFA和NFA模拟来说就是普通的空转移.
+     * @param node
+     * @param next
+     * @return
+     */
+    private StateNode constructForGroup(AstNode node, StateNode next){
+        /*
+         *    open(2n)--->child--->close(2n+1)--->next
+         */
+        StateNode close = nodePool.getStateNode();
+        close.setSlot(2 * node.group + 1);
+        close.out = next;
+        StateNode open = nodePool.getStateNode();
+        open.setSlot(2 * node.group);
+        open.out = construct(node.children[0], close);
+        return open;
     }
-}
\ No newline at end of file
+}
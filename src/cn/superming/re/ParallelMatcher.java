@@ -0,0 +1,224 @@
+package cn.superming.re;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 并行匹配器
+ * 把大文本切成若干块, 在ForkJoinPool上并行查找每一块中起点落在块内的匹配, 再按顺序拼接结果.
+ * 匹配采用最左最长、互不重叠的语义, 与StreamMatcher一致, ^ 和 $ 分别表示文本的开头和结尾.
+ *
+ * 每一块都假设扫描恰好从块首开始, 匹配可以越过块尾继续延伸.
+ * 拼接时如果上一块最后一个匹配越过了块尾, 真正的扫描位置落在块内某处:
+ * 若它落在本块两个相邻匹配之间的空隙里, 从这里开始的结果与块内的结果完全相同, 直接沿用;
+ * 否则从真正的位置顺序重新查找, 直到再次落入空隙为止.
+ * ParallelMatcher本身不可变, 可以被多个线程共享.
+ * 偏移按char计算, 不支持以 Regex.UTF8 编译的Pattern.
+ */
+public final class ParallelMatcher {
+    private static final int MIN_CHUNK_SIZE = 1 << 16;    // 每块的最小字符数
+    private static final int CHUNKS_PER_THREAD = 4;       // 每个线程分到的块数, 用于平衡负载
+
+    private final Pattern pattern;
+    private final ForkJoinPool pool;
+
+    public ParallelMatcher(Pattern pattern){
+        this(pattern, ForkJoinPool.commonPool());
+    }
+
+    public ParallelMatcher(Pattern pattern, ForkJoinPool pool){
+        if (pattern == null || pool == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+        if (pattern.isUtf8()){
+            throw new RuntimeException("输入有误: ParallelMatcher不支持UTF8模式.");
+        }
+        this.pattern = pattern;
+        this.pool = pool;
+    }
+
+    /**
+     * 查找text中所有的匹配
+     * @param text
+     * @return 起点和终点成对存放: [start0, end0, start1, end1, ...]
+     */
+    public int[] findAll(CharSequence text){
+        if (text == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        int length = text.length();
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, length / (pool.getParallelism() * CHUNKS_PER_THREAD) + 1);
+        int chunkCount = (int) ((length + (long) chunkSize - 1) / chunkSize);
+        if (chunkCount <= 1){
+            Spans spans = new Spans();
+            findInChunk(pattern.matcher(), text, 0, length, spans);
+            return spans.toArray();
+        }
+
+        int[] bounds = new int[chunkCount + 1];
+        for (int i = 0; i < chunkCount; i++) {
+            bounds[i] = i * chunkSize;
+        }
+        bounds[chunkCount] = length;
+        Spans[] chunks = new Spans[chunkCount];
+        pool.invoke(new ChunkTask(text, bounds, chunks, 0, chunkCount));
+        return stitch(text, bounds, chunks);
+    }
+
+    /**
+     * 统计text中匹配的个数
+     * @param text
+     * @return
+     */
+    public int count(CharSequence text){
+        return findAll(text).length / 2;
+    }
+
+    /**
+     * 顺序查找起点在[from, limit)中的所有匹配
+     * @param matcher
+     * @param text
+     * @param from
+     * @param limit
+     * @param spans 存放结果
+     */
+    private static void findInChunk(Matcher matcher, CharSequence text, int from, int limit, Spans spans){
+        int position = from;
+        while (position < limit){
+            long span = matcher.find(text, position, limit);
+            if (span < 0){
+                return;
+            }
+            spans.add((int) (span >>> 32), (int) span);
+            position = (int) span;
+        }
+    }
+
+    /**
+     * 按顺序拼接各块的结果, 块首与真正的扫描位置不一致时修正
+     * @param text
+     * @param bounds 块边界
+     * @param chunks 各块的结果
+     * @return
+     */
+    private int[] stitch(CharSequence text, int[] bounds, Spans[] chunks){
+        Spans result = new Spans();
+        Matcher matcher = null;
+        int position = 0;       // 真正的扫描位置: 上一个匹配的终点
+        for (int i = 0; i < chunks.length; i++) {
+            int limit = bounds[i + 1];
+            if (position >= limit){         // 上一个匹配覆盖了整块
+                continue;
+            }
+            Spans chunk = chunks[i];
+            int k = chunk.firstStartAtOrAfter(position);
+            while (position < limit && k > 0 && chunk.end(k - 1) > position){   // 位置落在块内某个匹配中间, 重新查找
+                if (matcher == null){
+                    matcher = pattern.matcher();
+                }
+                long span = matcher.find(text, position, limit);
+                if (span < 0){
+                    k = chunk.size();
+                    position = limit;
+                    break;
+                }
+                result.add((int) (span >>> 32), (int) span);
+                position = (int) span;
+                k = chunk.firstStartAtOrAfter(position);
+            }
+            for (; k < chunk.size(); k++) {
+                result.add(chunk.start(k), chunk.end(k));
+                position = chunk.end(k);
+            }
+            position = Math.max(position, limit);
+        }
+        return result.toArray();
+    }
+
+    /**
+     * 递归地把块分给ForkJoinPool中的线程
+     */
+    private final class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CharSequence text;
+        private final int[] bounds;
+        private final Spans[] chunks;
+        private final int from;
+        private final int to;
+
+        ChunkTask(CharSequence text, int[] bounds, Spans[] chunks, int from, int to){
+            this.text = text;
+            this.bounds = bounds;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1){
+                int middle = (from + to) >>> 1;
+                invokeAll(new ChunkTask(text, bounds, chunks, from, middle),
+                        new ChunkTask(text, bounds, chunks, middle, to));
+                return;
+            }
+            Spans spans = new Spans();
+            findInChunk(pattern.matcher(), text, bounds[from], bounds[from + 1], spans);
+            chunks[from] = spans;
+        }
+    }
+
+    /**
+     * 按起点有序存放的匹配区间
+     */
+    private static final class Spans {
+        private int[] data = new int[16];
+        private int size;
+
+        void add(int start, int end){
+            if (size * 2 == data.length){
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size * 2] = start;
+            data[size * 2 + 1] = end;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int start(int index){
+            return data[index * 2];
+        }
+
+        int end(int index){
+            return data[index * 2 + 1];
+        }
+
+        /**
+         * 二分查找第一个起点不小于position的匹配
+         * @param position
+         * @return 下标, 都小于position时返回size
+         */
+        int firstStartAtOrAfter(int position){
+            int low = 0;
+            int high = size;
+            while (low < high){
+                int middle = (low + high) >>> 1;
+                if (start(middle) < position){
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        int[] toArray(){
+            return Arrays.copyOf(data, size * 2);
+        }
+    }
+
+}
@@ -0,0 +1,315 @@
+package cn.superming.re;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 语法分析器
+ * 对Lexer给出的词法单元做递归下降分析, 构建语法树. 遇到 $ 或多余的 ) 时停止解析, 后面的内容被忽略.
+ * 大小写不敏感时把字母和字符集扩展为同时包含大小写, 匹配时文本不需要转换.
+ * 默认模式下增补字符常量拆成高低两个代理字符的连接; UTF8模式下字符集是码点的集合, 由NFAConstructor展开为字节.
+ */
+class Parser {
+    private final Lexer lexer = new Lexer();
+    private final CharRanges ranges = new CharRanges();     // 构建字符集时复用
+    private boolean foldCase;       // 是否大小写不敏感
+    private boolean utf8;           // 字符集是否为码点的集合
+    private int groupCount;         // 已经遇到的捕获分组个数, 按左括号出现的顺序编号
+
+    /**
+     * 解析正则表达式
+     * @param regex
+     * @param flags 编译选项, 使用其中的 Regex.CASE_INSENSITIVE 和 Regex.UTF8
+     * @return 语法树
+     */
+    AstNode parse(String regex, int flags){
+        foldCase = (flags & Regex.CASE_INSENSITIVE) != 0;
+        utf8 = (flags & Regex.UTF8) != 0;
+        groupCount = 0;
+        lexer.restart();        // 上一次解析可能没有解析到头(比如遇到了 $ 或者抛出了异常), 总是重启解析器.
+        lexer.setRegex(regex);
+        lexer.advance();        // 先处理一个字符
+        return expression();
+    }
+
+    /**
+     * 为字符集创建叶子: UTF8模式下去掉不能单独编码的代理字符, 默认模式下不能包含增补字符
+     * @param set
+     * @return
+     */
+    private AstNode leaf(CharRanges set){
+        if (utf8){
+            set.remove(Character.MIN_SURROGATE, Character.MAX_SURROGATE);
+        } else if (set.max() > CharRanges.MAX_CHAR){
+            throw new RuntimeException("非法输入: 字符集中包含增补字符时需要使用UTF8模式.");
+        }
+        return AstNode.charset(set.toArray());
+    }
+
+    private AstNode leaf(int c){
+        ranges.clear();
+        ranges.add(c);
+        return leaf(ranges);
+    }
+
+    /**
+     * 单个字符
+     * @return 当前不是字符时返回空
+     */
+    private AstNode singleChar(){
+        if (!lexer.matchCurrentTag(Lexer.Tag.L)){
+            return null;
+        }
+
+        int c = lexer.getCurrentChar();
+        ranges.clear();
+        ranges.add(c);
+        if (foldCase && (utf8 || c <= CharRanges.MAX_CHAR)){     // 字母的各种大小写组成字符集
+            ranges.addCaseVariants();
+        }
+        AstNode node;
+        if (!utf8 && c > CharRanges.MAX_CHAR && ranges.isSingle()){
+            List<AstNode> pair = new ArrayList<>(2);              // 增补字符拆成高低两个代理字符
+            pair.add(leaf(Character.highSurrogate(c)));
+            pair.add(leaf(Character.lowSurrogate(c)));
+            node = AstNode.concat(pair);
+        } else {
+            node = leaf(ranges);
+        }
+
+        lexer.advance();                            // 解析下一个字符
+        return node;
+    }
+
+    /**
+     * 取反: 默认模式下在全部char中取反, UTF8模式下在除代理字符以外的全部码点中取反
+     * @param set
+     */
+    private void negate(CharRanges set){
+        if (utf8){
+            set.negate(CharRanges.MAX_CODE_POINT);
+            set.remove(Character.MIN_SURROGATE, Character.MAX_SURROGATE);
+        } else {
+            set.negate(CharRanges.MAX_CHAR);
+        }
+    }
+
+    /**
+     * 任意匹配符(.)
+     * @return 当前不是 . 时返回空
+     */
+    private AstNode any(){
+        if (!lexer.matchCurrentTag(Lexer.Tag.ANY)){
+            return null;
+        }
+
+        ranges.clear();
+        ranges.add('\n');                               // 不解析回车和换行符
+        ranges.add('\r');
+        negate(ranges);
+        AstNode node = leaf(ranges);
+
+        lexer.advance();                            // 解析下一个字符
+        return node;
+    }
+
+    /**
+     * [...] | [.-.] | [^...] | [^.-.]
+     * @return 当前不是 [ 时返回空
+     */
+    private AstNode charSet(){
+        if (!lexer.matchCurrentTag(Lexer.Tag.SQUARE_LEFT)){
+            return null;
+        }
+
+        lexer.advance();        // 跳过 [ 符号, 解析下一个字符
+
+        boolean isCaret = false;    // 判断是否 ^ 符号
+        if (lexer.matchCurrentTag(Lexer.Tag.CARET)){
+            isCaret = true;
+            lexer.advance();
+        }
+
+        if (lexer.matchCurrentTag(Lexer.Tag.SQUARE_RIGHT)){
+            throw new RuntimeException("非法输入: 方括号内无内容.");
+        }
+
+        ranges.clear();
+        doInBrackets(ranges);                        // 方括号中内容处理
+        if (!utf8 && ranges.max() > CharRanges.MAX_CHAR){
+            throw new RuntimeException("非法输入: 字符集中包含增补字符时需要使用UTF8模式.");
+        }
+        if (foldCase){                               // 先补全大小写再取反, [^a] 同时排除 a 和 A
+            ranges.addCaseVariants();
+        }
+        if (isCaret){                                // 如果有^符号, 将字符集中内容取反
+            negate(ranges);
+        }
+        AstNode node = leaf(ranges);
+
+        lexer.advance();
+        return node;
+    }
+
+    /**
+     * 处理方括号内部的内容
+     * @param set 字符集
+     */
+    private void doInBrackets(CharRanges set){
+        int beforeDash = 0;
+        while (!lexer.matchCurrentTag(Lexer.Tag.SQUARE_RIGHT)){     // 当解析到右方括号时结束
+            if (lexer.matchCurrentTag(Lexer.Tag.END)){              // 没有遇到右方括号但正则表达式已经解析结束
+                throw new RuntimeException("非法输入：没有右方括号.");
+            }
+
+            if (!lexer.matchCurrentTag(Lexer.Tag.DASH)){            // 如果不是 - 号, 就将字符加入字符集
+                beforeDash = lexer.getCurrentChar();
+                set.add(beforeDash);
+            } else {                                                // 如果是 - 号, 将 - 符号左右两边的字符之间的字符加入字符集和
+                lexer.advance();  // 跳过 - 号
+                if (beforeDash == 0){
+                    throw new RuntimeException("非法输入: -号前没有字符.");
+                }
+                if (lexer.matchCurrentTag(Lexer.Tag.L)) {
+                    set.add(beforeDash + 1, lexer.getCurrentChar());
+                } else {
+                    throw new RuntimeException("非法输入: -号后是非法字符.");
+                }
+            }
+            lexer.advance();
+        }
+    }
+
+    /**
+     * (expression) 和 (?:expression), 非捕获分组直接返回括号中的内容
+     * @return 当前不是 ( 时返回空
+     */
+    private AstNode inParenExpression(){
+        if (!lexer.matchCurrentTag(Lexer.Tag.PAREN_LEFT)){ // 判断是否是(符号
+            return null;
+        }
+        lexer.advance();    // 解析下一个字符
+        int group = 0;
+        if (lexer.matchCurrentTag(Lexer.Tag.OPT)){         // (?: 不捕获
+            lexer.advance();
+            if (!lexer.matchCurrentTag(Lexer.Tag.L) || lexer.getCurrentChar() != ':'){
+                throw new RuntimeException("非法输入: (?后只能是:.");
+            }
+            lexer.advance();
+        } else {
+            group = ++groupCount;
+        }
+        AstNode node = expression();   // ()中的内容
+        if (lexer.matchCurrentTag(Lexer.Tag.PAREN_RIGHT)){  // 判断是否是)符号
+            lexer.advance();
+        } else {
+            throw new RuntimeException("非法输入: 缺失右圆括号.");
+        }
+        return group > 0 ? AstNode.group(group, node) : node;
+    }
+
+    /**
+     * 最高优先级
+     * @return
+     */
+    private AstNode firstLevel(){
+        /*
+         * firstLevel -> singleChar | . | [...] | (expression)
+         */
+        AstNode node = inParenExpression();
+        if (node == null){
+            node = singleChar();
+        }
+        if (node == null){
+            node = any();
+        }
+        if (node == null){
+            node = charSet();
+        }
+        if (node == null){
+            throw new RuntimeException("非法输入: " + (char) lexer.getCurrentChar() + "只能用在方括号中.");
+        }
+        return node;
+    }
+
+    /**
+     * 次高优先级
+     * @return
+     */
+    private AstNode secondLevel(){
+        /*
+         *  secondLevel -> firstLevel* | firstLevel+ | firstLevel?
+         */
+        AstNode node = firstLevel();
+        int kind;
+        switch (lexer.getCurrentTag()){
+            case CLOSURE:
+                kind = AstNode.STAR;
+                break;
+            case PLUS:
+                kind = AstNode.PLUS;
+                break;
+            case OPT:
+                kind = AstNode.OPT;
+                break;
+            default:
+                return node;
+        }
+        lexer.advance();
+        return AstNode.repeat(kind, node);
+    }
+
+    private AstNode expression() {
+        /*
+         * expression -> concat_expression
+         * expression -> concat_expression | concat_expression
+         */
+        AstNode node = concatExpression();
+        if (!lexer.matchCurrentTag(Lexer.Tag.OR)){
+            return node;
+        }
+
+        List<AstNode> branches = new ArrayList<>();
+        branches.add(node);
+        while (lexer.matchCurrentTag(Lexer.Tag.OR)){
+            lexer.advance();                        // 解析下一字符
+            branches.add(concatExpression());
+        }
+        return AstNode.alternate(branches);
+    }
+
+    private AstNode concatExpression() {
+        /*
+         * concatExpression -> secondLevel·secondLevel
+         * concatExpression -> concatExpression·secondLevel
+         */
+        List<AstNode> items = new ArrayList<>();
+        // 只要后面的字符与前面的可以直接连接,就继续
+        while (isLegal(lexer.getCurrentTag())){
+            items.add(secondLevel());
+        }
+        if (items.isEmpty()){
+            throw new RuntimeException("非法输入: 表达式、括号中的内容和|两边都不能为空.");
+        }
+        return items.size() == 1 ? items.get(0) : AstNode.concat(items);
+    }
+
+    private boolean isLegal(Lexer.Tag tag){
+        switch (tag){
+            case DOLLAR:
+            case PAREN_RIGHT:
+            case OR:
+            case END:
+                return false;
+            case CLOSURE:
+            case PLUS:
+            case OPT:
+                throw new RuntimeException("非法输入: " + (char) lexer.getCurrentChar() + "应该放在表达式末尾.");
+            case CARET:
+                throw new RuntimeException((char) lexer.getCurrentChar() + "应该放在整个表达式开头.");
+            case SQUARE_RIGHT:
+                throw new RuntimeException("非法输入: 不能以" + (char) lexer.getCurrentChar() + "开头.");
+        }
+        return true;
+    }
+}
@@ -0,0 +1,411 @@
+package cn.superming.re;
+
+import java.nio.ByteBuffer;
+import java.util.stream.Stream;
+
+/**
+ * 编译后的正则表达式
+ * 由 Regex.compile 构建, NFA 只在编译时构建一次, 之后的每次匹配都复用它.
+ * 构建完成后不再修改, 匹配过程只读取状态机.
+ *
+ * 线程安全: Pattern是不可变的, 可以被任意多个线程同时使用而不需要加锁.
+ * 匹配时的可变状态都在Matcher中, Matcher不能跨线程共享;
+ * matchAll和match会复用当前线程缓存的Matcher, 稳定状态下不产生额外的垃圾.
+ * 惰性DFA在首次遇到新状态时加锁计算, 预热完成后查表不加锁.
+ *
+ * 使用 Regex.UTF8 编译时, 状态机按UTF-8字节构建, 可以直接匹配byte[]和ByteBuffer而不需要解码;
+ * 否则状态机按UTF-16字符(char)构建, 字节按ISO-8859-1逐个当作字符.
+ *
+ * 使用 Regex.BYTECODE 编译时, matchAll和containsMatch(exists)的调用次数达到阈值
+ * (系统属性 cn.superming.re.bytecodeThreshold, 默认1000)后, DFA会被编译成专用的字节码, 之后的调用都使用它.
+ *
+ * 使用 Regex.POSITION 编译时, NFA在编译时消去空转移(见 Program.positions()), NFA模拟的状态集合中只有位置.
+ *
+ * 打开统计(系统属性 cn.superming.re.metrics=true)后, stats() 返回编译耗时、匹配次数和耗时、读入的字符数等计数,
+ * 见 RegexMetrics.
+ */
+public final class Pattern {
+    private static final int CACHED_MATCHERS = 4;   // 每个线程缓存的Matcher个数
+    private static final ThreadLocal<Matcher[]> MATCHERS = ThreadLocal.withInitial(() -> new Matcher[CACHED_MATCHERS]);
+
+    private final String regex;             // 原始正则表达式
+    private final int flags;                // 编译选项
+    private final boolean startWithCaret;   // 是否以 ^ 开头
+    private final boolean endWithDollar;    // 是否以 $ 结尾
+    private final Program program;          // 去掉 ^ 和 $ 之后构建的NFA
+    private final DFA dfa;                  // 由NFA构建的DFA, 优先使用; 为空时只用NFA模拟
+    private final DFA unanchoredDfa;        // 在每个位置都加入开始结点的DFA, 用于查找是否包含匹配
+    private final Prefilter prefilter;      // 从NFA中提取的字面前缀和必需字面串
+    private volatile DFA reverseDfa;        // 反转的NFA构建的锚定DFA, 从后往前扫描时使用, 第一次需要时才构建
+    private volatile LeftmostDFA leftmostDfa;   // 查找最左最长匹配的终点时使用, 第一次需要时才构建
+    private volatile CompiledDFA compiled;  // 调用次数达到阈值后生成的字节码
+    private int calls;                      // 调用次数, 多线程下可能少计, 只用于判断是否值得生成字节码
+    private final PatternStats stats;       // 打开统计时的计数, 否则为空
+
+    Pattern(String regex, int flags){
+        this(regex, flags, construct(regex, flags), null, null, null);
+    }
+
+    /**
+     * 由已经构建好的NFA创建, 从编译结果中加载时直接传入预过滤器和预先最小化的DFA
+     * @param regex 原始正则表达式
+     * @param flags 编译选项
+     * @param program 去掉 ^ 和 $ 之后构建的NFA
+     * @param prefilter 预过滤器, 为空时分析NFA得到
+     * @param dfa 预先最小化的锚定DFA, 为空时按flags构建
+     * @param unanchoredDfa 预先最小化的非锚定DFA, 为空时按flags构建
+     */
+    Pattern(String regex, int flags, Program program, Prefilter prefilter, DenseDFA dfa, DenseDFA unanchoredDfa){
+        this.regex = regex;
+        this.flags = flags;
+        this.program = (flags & Regex.POSITION) != 0 ? program.positions() : program;
+        startWithCaret = regex.startsWith("^");
+        endWithDollar = endsWithDollar(regex);
+        this.prefilter = prefilter != null ? prefilter : Prefilter.of(this.program);
+        if ((flags & Regex.PIKE_VM) != 0){
+            this.dfa = null;
+            this.unanchoredDfa = null;
+        } else {        // 与反向DFA、字节码一样都由this.program构建; positions()与原NFA共用结点数组和等价类
+            this.dfa = dfa != null ? dfa : automaton(this.program, flags, false);
+            this.unanchoredDfa = unanchoredDfa != null ? unanchoredDfa : automaton(this.program, flags, true);
+        }
+        if (RegexMetrics.ENABLED){
+            stats = new PatternStats(this);
+            RegexMetrics.register(this);
+        } else {
+            stats = null;
+        }
+    }
+
+    /**
+     * 去掉 ^ 和 $ 之后构建NFA
+     * @param regex
+     * @param flags
+     * @return
+     */
+    private static Program construct(String regex, int flags){
+        int begin = regex.startsWith("^") ? 1 : 0;
+        int end = endsWithDollar(regex) ? regex.length() - 1 : regex.length();
+        if (begin >= end){
+            throw new RuntimeException("输入有误: regex不能为空.");
+        }
+        NodePair pair = NFAConstructor.local().construct(regex.substring(begin, end), new NodePair(), flags);
+        return Program.from(pair);          // 只保留扁平化的NFA, StateNode对象图随即丢弃
+    }
+
+    /**
+     * 构建DFA: 有 Regex.MINIMIZE 时预先完全确定化并最小化, 状态过多无法完全确定化时仍使用惰性DFA
+     * @param program
+     * @param flags
+     * @param unanchored
+     * @return
+     */
+    private static DFA automaton(Program program, int flags, boolean unanchored){
+        if ((flags & Regex.MINIMIZE) != 0){
+            DenseDFA dense = DenseDFA.minimize(program, new LazyDFA(program, unanchored));
+            if (dense != null){
+                return dense;
+            }
+        }
+        return new LazyDFA(program, unanchored);     // 确定化失败的惰性DFA已经记住了失败, 不能再用
+    }
+
+    /**
+     * 判断正则表达式是否以未被转义的 $ 结尾
+     * @param regex
+     * @return
+     */
+    static boolean endsWithDollar(String regex){
+        if (!regex.endsWith("$")){
+            return false;
+        }
+        int escapeCount = 0;
+        for (int i = regex.length() - 2; i >= 0 && regex.charAt(i) == '\\'; i--) {
+            escapeCount++;
+        }
+        return escapeCount % 2 == 0;    // 前面有奇数个转义符时, $ 是普通字符
+    }
+
+    public String pattern() {
+        return regex;
+    }
+
+    /**
+     * @return 捕获分组的个数, (?:...) 不计入
+     */
+    public int groupCount() {
+        return program.groupCount;
+    }
+
+    public int flags() {
+        return flags;
+    }
+
+    public boolean isCaseSensitive() {
+        return (flags & Regex.CASE_INSENSITIVE) == 0;
+    }
+
+    /**
+     * @return 是否按UTF-8字节构建状态机
+     */
+    public boolean isUtf8() {
+        return (flags & Regex.UTF8) != 0;
+    }
+
+    /**
+     * 创建一个新的匹配器, 匹配器可被反复使用
+     * @return
+     */
+    public Matcher matcher(){
+        return new Matcher(this);
+    }
+
+    /**
+     * 创建一个流式匹配器, 数据可以分多次读入
+     * @param listener 找到匹配时的回调
+     * @return
+     */
+    public StreamMatcher streamMatcher(MatchListener listener){
+        return new StreamMatcher(this, listener);
+    }
+
+    /**
+     * 判断当前字符串是否能被状态机接收(贪心匹配)
+     * @param text 字符串
+     * @return 是否被接受
+     */
+    public boolean matchAll(String text){
+        return cachedMatcher().matchAll(text);
+    }
+
+    /**
+     * 匹配字符串text中被状态机接收的字串(全匹配)
+     * @param text 需要匹配的字符串
+     * @return 能被接收的字串
+     */
+    public String[] match(String text){
+        return cachedMatcher().match(text);
+    }
+
+    /**
+     * 与match的语义相同, 但只返回每个字串的起止下标, 不截取子串
+     * @param text 需要匹配的字符串
+     * @return 起点和终点成对存放: [start0, end0, start1, end1, ...]
+     */
+    public int[] matchSpans(String text){
+        return cachedMatcher().matchSpans(text);
+    }
+
+    /**
+     * 查找text中所有互不重叠的匹配(最左最长), 只返回偏移
+     * @param text
+     * @return 起点和终点成对存放: [start0, end0, start1, end1, ...]
+     */
+    public int[] findAll(CharSequence text){
+        return cachedMatcher().findAll(text);
+    }
+
+    /**
+     * 以顺序流的形式惰性返回text中所有互不重叠的匹配(最左最长), 短路操作会提前结束扫描.
+     * 流使用新建的Matcher, 可以交给其他线程消费
+     * @param text
+     * @return
+     */
+    public Stream<MatchResult> results(CharSequence text){
+        return matcher().results(text);
+    }
+
+    /**
+     * 查找text中的第一个匹配, 找到后立即返回
+     * @param text
+     * @return 第一个匹配, 没有匹配时返回null
+     */
+    public MatchResult findFirst(CharSequence text){
+        return cachedMatcher().findFirst(text);
+    }
+
+    /**
+     * 判断text中是否存在匹配, 在第一个接收状态处停止
+     * @param text
+     * @return
+     */
+    public boolean exists(CharSequence text){
+        return cachedMatcher().exists(text);
+    }
+
+    /**
+     * 统计text中互不重叠的匹配(最左最长)的个数, 不创建任何对象
+     * @param text
+     * @return
+     */
+    public int count(CharSequence text){
+        return cachedMatcher().count(text);
+    }
+
+    /**
+     * 判断字节数组是否能被状态机接收(贪心匹配)
+     * @param bytes UTF8模式下是UTF-8字节, 否则每个字节当作一个字符
+     * @return 是否被接受
+     */
+    public boolean matchAll(byte[] bytes){
+        return cachedMatcher().matchAll(bytes);
+    }
+
+    /**
+     * 匹配字节数组中被状态机接收的字串(全匹配)
+     * @param bytes UTF8模式下是UTF-8字节, 否则每个字节当作一个字符
+     * @return 能被接收的字串
+     */
+    public String[] match(byte[] bytes){
+        return cachedMatcher().match(bytes);
+    }
+
+    /**
+     * 判断ByteBuffer剩余的字节中是否包含非空匹配, 不改变buffer的位置
+     * @param buffer UTF8模式下是UTF-8字节, 否则每个字节当作一个字符
+     * @return
+     */
+    public boolean containsMatch(ByteBuffer buffer){
+        return cachedMatcher().containsMatch(buffer);
+    }
+
+    /**
+     * 取当前线程缓存的本Pattern的Matcher, 没有时新建一个并替换最久未用的缓存项.
+     * 缓存容量固定, 线程不会因为缓存而长期持有大量不再使用的Pattern
+     * @return
+     */
+    private Matcher cachedMatcher(){
+        Matcher[] matchers = MATCHERS.get();
+        for (int i = 0; i < CACHED_MATCHERS; i++) {
+            Matcher matcher = matchers[i];
+            if (matcher != null && matcher.pattern() == this){
+                System.arraycopy(matchers, 0, matchers, 1, i);     // 移到最前面
+                matchers[0] = matcher;
+                return matcher;
+            }
+        }
+        Matcher matcher = matcher();
+        System.arraycopy(matchers, 0, matchers, 1, CACHED_MATCHERS - 1);
+        matchers[0] = matcher;
+        return matcher;
+    }
+
+    /**
+     * 从后往前扫描用的DFA: 从某个位置往前读到i时处于接收状态, 表示从i到该位置的子串能被正则表达式接收.
+     * 第一次调用时才反转NFA并构建, 只用NFA模拟时返回null
+     * @return
+     */
+    DFA reverseDfa(){
+        DFA result = reverseDfa;
+        if (result == null && dfa != null){
+            synchronized (this){
+                result = reverseDfa;
+                if (result == null){
+                    result = automaton(program.reverse(), flags, false);
+                    reverseDfa = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 查找最左最长匹配的终点用的DFA, 第一次调用时才构建, 只用NFA模拟时返回null
+     * @return
+     */
+    LeftmostDFA leftmostDfa(){
+        LeftmostDFA result = leftmostDfa;
+        if (result == null && dfa != null){
+            synchronized (this){
+                result = leftmostDfa;
+                if (result == null){
+                    result = new LeftmostDFA(program, endWithDollar);
+                    leftmostDfa = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 计一次调用, 次数达到阈值时生成字节码
+     * @return 已经生成的字节码, 没有时返回null
+     */
+    CompiledDFA compiled(){
+        CompiledDFA result = compiled;
+        if (result == null && (flags & Regex.BYTECODE) != 0 && dfa != null
+                && calls < DFACompiler.THRESHOLD && ++calls == DFACompiler.THRESHOLD){
+            result = promote();
+        }
+        return result;
+    }
+
+    /**
+     * 生成字节码, 只尝试一次, 失败后一直使用DFA
+     * @return
+     */
+    private synchronized CompiledDFA promote(){
+        if (compiled == null){
+            compiled = DFACompiler.compile(program,
+                    DenseDFA.of(dfa, program, false), DenseDFA.of(unanchoredDfa, program, true));
+        }
+        return compiled;
+    }
+
+    /**
+     * 返回本Pattern的统计计数, 没有打开统计(系统属性 cn.superming.re.metrics=true)时计数都是0
+     * @return
+     */
+    public PatternStats stats(){
+        return stats != null ? stats : new PatternStats(this);
+    }
+
+    /**
+     * 估算编译结果占用的堆内存字节数, 惰性DFA只计算当前已经构建的部分, 映射的文件不计算在内
+     * @return
+     */
+    public long estimatedBytes(){
+        long bytes = 2L * regex.length() + program.estimatedBytes();
+        if (dfa != null){
+            bytes += dfa.estimatedBytes() + unanchoredDfa.estimatedBytes();
+        }
+        DFA reverse = reverseDfa;
+        if (reverse != null){
+            bytes += reverse.estimatedBytes();
+        }
+        LeftmostDFA leftmost = leftmostDfa;
+        if (leftmost != null){
+            bytes += leftmost.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return regex;
+    }
+
+    Program program() {
+        return program;
+    }
+
+    DFA dfa() {
+        return dfa;
+    }
+
+    DFA unanchoredDfa() {
+        return unanchoredDfa;
+    }
+
+    Prefilter prefilter() {
+        return prefilter;
+    }
+
+    boolean startWithCaret() {
+        return startWithCaret;
+    }
+
+    boolean endWithDollar() {
+        return endWithDollar;
+    }
+}
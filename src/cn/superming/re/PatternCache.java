@@ -0,0 +1,228 @@
+package cn.superming.re;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 编译结果缓存
+ * 以(正则表达式, 编译选项)为键缓存Pattern, 重复出现的正则表达式只需要一次哈希查找.
+ * 缓存按条目数或估算的字节数限制大小, 超出时淘汰最久未使用的条目.
+ *
+ * 缓存分成若干段, 每段是一个按访问顺序排列的LinkedHashMap, 由各自的锁保护, 不同段之间互不阻塞.
+ * 编译在锁外进行, 多个线程同时编译同一个正则表达式时只保留先放入的结果.
+ * 字节数按放入缓存时Pattern.estimatedBytes()估算, 惰性DFA之后的增长不计入.
+ */
+public final class PatternCache {
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_ENTRIES = 4;       // 按条目数限制时每段的最小容量
+    private static final long MIN_SEGMENT_BYTES = 1L << 16; // 按字节数限制时每段的最小容量
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+    private static final PatternCache DEFAULT = withMaxEntries(DEFAULT_MAX_ENTRIES);
+
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private PatternCache(long capacity, boolean byBytes){
+        if (capacity <= 0){
+            throw new RuntimeException("输入有误: 缓存容量必须大于0.");
+        }
+        long minShare = byBytes ? MIN_SEGMENT_BYTES : MIN_SEGMENT_ENTRIES;
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS && segmentCount * 2 * minShare <= capacity){
+            segmentCount <<= 1;     // 容量较小时少分几段, 避免每段只能放下一两个条目
+        }
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long share = capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0);
+            segments[i] = new Segment(byBytes ? Long.MAX_VALUE : share, byBytes ? share : Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * 按条目数限制大小的缓存
+     * @param maxEntries 最多缓存的Pattern个数
+     * @return
+     */
+    public static PatternCache withMaxEntries(int maxEntries){
+        return new PatternCache(maxEntries, false);
+    }
+
+    /**
+     * 按估算的字节数限制大小的缓存
+     * @param maxBytes 所有Pattern估算字节数之和的上限
+     * @return
+     */
+    public static PatternCache withMaxBytes(long maxBytes){
+        return new PatternCache(maxBytes, true);
+    }
+
+    /**
+     * Regex.matchAll和Regex.match使用的共享缓存, 最多保存256个Pattern
+     * @return
+     */
+    public static PatternCache defaultCache(){
+        return DEFAULT;
+    }
+
+    /**
+     * 取出缓存的Pattern, 没有时编译并放入缓存
+     * @param regex 正则表达式
+     * @param flags 编译选项
+     * @return
+     */
+    public Pattern get(String regex, int flags){
+        if (regex == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        Key key = new Key(regex, flags);
+        Segment segment = segments[(key.hash ^ (key.hash >>> 16)) & (segments.length - 1)];
+        Pattern pattern = segment.get(key);
+        if (pattern != null){
+            hits.increment();
+            return pattern;
+        }
+        misses.increment();
+        return segment.putIfAbsent(key, Regex.compile(regex, flags));
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return 当前缓存的条目数
+     */
+    public int size(){
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return 当前缓存的所有条目在放入时估算的字节数之和
+     */
+    public long estimatedBytes(){
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * 清空缓存, 计数器不变
+     */
+    public void clear(){
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * 缓存的一段, 所有操作都在该段的锁内进行
+     */
+    private final class Segment {
+        private final long maxEntries;
+        private final long maxBytes;
+        private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        Segment(long maxEntries, long maxBytes){
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Pattern get(Key key){
+            Entry entry = map.get(key);
+            return entry == null ? null : entry.pattern;
+        }
+
+        /**
+         * 放入新编译的Pattern, 其他线程已经放入时返回已有的
+         * @param key
+         * @param pattern
+         * @return 缓存中的Pattern
+         */
+        synchronized Pattern putIfAbsent(Key key, Pattern pattern){
+            Entry existing = map.get(key);
+            if (existing != null){
+                return existing.pattern;
+            }
+            Entry entry = new Entry(pattern);
+            map.put(key, entry);
+            bytes += entry.bytes;
+
+            Iterator<Map.Entry<Key, Entry>> iterator = map.entrySet().iterator();
+            while (map.size() > 1 && (map.size() > maxEntries || bytes > maxBytes)){
+                Entry eldest = iterator.next().getValue();     // 访问顺序最早的在最前面
+                iterator.remove();
+                bytes -= eldest.bytes;
+                evictions.increment();
+            }
+            return pattern;
+        }
+
+        synchronized int size(){
+            return map.size();
+        }
+
+        synchronized long bytes(){
+            return bytes;
+        }
+
+        synchronized void clear(){
+            map.clear();
+            bytes = 0;
+        }
+    }
+
+    private static final class Entry {
+        final Pattern pattern;
+        final long bytes;       // 放入时估算的字节数
+
+        Entry(Pattern pattern){
+            this.pattern = pattern;
+            this.bytes = pattern.estimatedBytes();
+        }
+    }
+
+    private static final class Key {
+        final String regex;
+        final int flags;
+        final int hash;
+
+        Key(String regex, int flags){
+            this.regex = regex;
+            this.flags = flags;
+            this.hash = regex.hashCode() * 31 + flags;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)){
+                return false;
+            }
+            Key key = (Key) o;
+            return flags == key.flags && regex.equals(key.regex);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package cn.superming.re;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个Pattern的统计计数, 由 Pattern.stats() 返回.
+ * 只有打开统计(系统属性 cn.superming.re.metrics=true)时才会计数, 否则所有计数都是0.
+ * 每个Matcher在一次匹配中先在自己的字段里计数, 匹配结束时才累加到这里, 多个线程同时匹配时只竞争LongAdder.
+ *
+ * DFA缓存未命中是惰性DFA计算新转移的次数, 包括预先最小化和生成字节码时计算的转移;
+ * 命中是Matcher中的DFA转移次数减去未命中的次数. 生成字节码后的匹配不经过转移表, 不计入命中,
+ * 读入的字符数按剩余的文本长度计算.
+ */
+public final class PatternStats {
+    private final Pattern pattern;
+    private volatile long compileNanos;
+    private final LongAdder matchCount = new LongAdder();
+    private final LongAdder matchNanos = new LongAdder();
+    private final LongAdder charsScanned = new LongAdder();
+    private final LongAdder nfaStatesVisited = new LongAdder();
+    private final LongAdder dfaTransitions = new LongAdder();
+
+    PatternStats(Pattern pattern){
+        this.pattern = pattern;
+    }
+
+    void recordCompile(long nanos){
+        compileNanos = nanos;
+    }
+
+    /**
+     * 累加一次匹配的计数
+     * @param nanos 耗时
+     * @param chars 状态机读入的字符数
+     * @param visited 访问的NFA结点数
+     * @param transitions DFA转移次数
+     */
+    void recordMatch(long nanos, long chars, long visited, long transitions){
+        matchCount.increment();
+        matchNanos.add(nanos);
+        charsScanned.add(chars);
+        if (visited != 0){
+            nfaStatesVisited.add(visited);
+        }
+        if (transitions != 0){
+            dfaTransitions.add(transitions);
+        }
+    }
+
+    public Pattern pattern() {
+        return pattern;
+    }
+
+    /**
+     * @return 编译耗时(纳秒), 从编译结果文件中加载的Pattern为0
+     */
+    public long compileNanos() {
+        return compileNanos;
+    }
+
+    /**
+     * @return 匹配次数, 每次find都算一次
+     */
+    public long matchCount() {
+        return matchCount.sum();
+    }
+
+    /**
+     * @return 匹配的总耗时(纳秒)
+     */
+    public long matchNanos() {
+        return matchNanos.sum();
+    }
+
+    /**
+     * @return 状态机读入的字符总数, 被预过滤器跳过的字符不计入
+     */
+    public long charsScanned() {
+        return charsScanned.sum();
+    }
+
+    /**
+     * @return NFA模拟中访问的结点总数(跳转时检查的结点和求epsilon闭包时加入的结点)
+     */
+    public long nfaStatesVisited() {
+        return nfaStatesVisited.sum();
+    }
+
+    public long dfaCacheHits() {
+        return Math.max(0, dfaTransitions.sum() - dfaCacheMisses());
+    }
+
+    public long dfaCacheMisses() {
+        DFA dfa = pattern.dfa();
+        return dfa == null ? 0 : dfa.misses() + pattern.unanchoredDfa().misses();
+    }
+
+    @Override
+    public String toString() {
+        return pattern + " compile=" + compileNanos() + "ns matches=" + matchCount() + " time=" + matchNanos()
+                + "ns chars=" + charsScanned() + " nfaStates=" + nfaStatesVisited()
+                + " dfaHits=" + dfaCacheHits() + " dfaMisses=" + dfaCacheMisses();
+    }
+}
@@ -0,0 +1,188 @@
+package cn.superming.re;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 编译结果文件
+ * 把一组Pattern的NFA和预先最小化的DFA写成带版本号的二进制格式, 启动时直接加载,
+ * 不再经过Lexer和NFAConstructor, 也不需要重新确定化.
+ *
+ * 格式(大端序, 每个部分都对齐到4字节):
+ *   文件头: 魔数"SMRE", 版本号, Pattern个数
+ *   每个Pattern: 编译选项, 正则表达式, 字面前缀, 必需的字面串(字符串都是长度和UTF-16字符),
+ *              NFA, DFA标记, 锚定和非锚定DFA的转移表
+ *   文件尾: 之前所有字节的CRC32校验和
+ * 状态数超过限制无法完全确定化的Pattern只保存NFA, 加载后仍使用惰性DFA.
+ *
+ * map通过内存映射加载, DFA转移表直接引用映射的内存而不复制, 多个进程可以共享同一份页缓存.
+ * 版本号不同的文件不能加载, 需要用当前版本重新生成. 加载时先核对校验和, 再检查各个编号都在范围内,
+ * 损坏的文件在加载时就被拒绝.
+ */
+public final class PatternStore {
+    static final int MAGIC = 0x534D5245;        // "SMRE"
+    static final int VERSION = 3;                // 2: NFA中增加了捕获分组的槽号, 3: 文件末尾增加校验和
+    private static final int HAS_DFA = 0x01;            // 保存了锚定DFA
+    private static final int HAS_UNANCHORED_DFA = 0x02; // 保存了非锚定DFA
+
+    private PatternStore(){
+    }
+
+    /**
+     * 把patterns写入文件, 文件已存在时覆盖
+     * @param patterns
+     * @param file
+     * @throws IOException
+     */
+    public static void write(List<Pattern> patterns, Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)){
+            write(patterns, out);
+        }
+    }
+
+    /**
+     * 把patterns写入输出流, 没有预先最小化的DFA在写出时确定化并最小化, 不改变patterns本身
+     * @param patterns
+     * @param out 写完后不关闭
+     * @throws IOException
+     */
+    public static void write(List<Pattern> patterns, OutputStream out) throws IOException {
+        if (patterns == null || out == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        CRC32 checksum = new CRC32();
+        DataOutputStream data = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(out), checksum));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(patterns.size());
+        for (Pattern pattern : patterns) {
+            if (pattern == null)
+                throw new RuntimeException("输入有误: 不能为空指针.");
+
+            Program program = pattern.program();
+            DenseDFA dfa = DenseDFA.of(pattern.dfa(), program, false);
+            DenseDFA unanchoredDfa = DenseDFA.of(pattern.unanchoredDfa(), program, true);
+
+            data.writeInt(pattern.flags());
+            writeString(data, pattern.pattern());
+            writeString(data, pattern.prefilter().prefix());
+            writeString(data, pattern.prefilter().required());
+            program.writeTo(data);
+            data.writeInt((dfa != null ? HAS_DFA : 0) | (unanchoredDfa != null ? HAS_UNANCHORED_DFA : 0));
+            if (dfa != null){
+                dfa.writeTo(data);
+            }
+            if (unanchoredDfa != null){
+                unanchoredDfa.writeTo(data);
+            }
+        }
+        data.writeInt((int) checksum.getValue());     // 先取值再写出, 校验和不包含自身
+        data.flush();
+    }
+
+    private static void writeString(DataOutputStream data, String string) throws IOException {
+        data.writeInt(string.length());
+        data.writeChars(string);
+        if (string.length() % 2 != 0){
+            data.writeChar(0);          // 补齐到4字节
+        }
+    }
+
+    private static String readString(ByteBuffer in){
+        Program.require(in, 4);
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining() / 2){
+            throw new RuntimeException("输入有误: 编译结果已损坏.");
+        }
+        char[] chars = new char[length];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + (length + 1) / 2 * 4);
+        return new String(chars);
+    }
+
+    /**
+     * 以内存映射的方式加载文件, DFA转移表直接引用映射的内存
+     * @param file
+     * @return 与写入时顺序相同的Pattern
+     * @throws IOException
+     */
+    public static List<Pattern> map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            if (channel.size() > Integer.MAX_VALUE){
+                throw new RuntimeException("输入有误: 编译结果文件过大.");
+            }
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * 从buffer剩余的字节中加载, 不改变buffer的位置. DFA转移表引用buffer中的数据, buffer之后不能再修改
+     * @param buffer
+     * @return 与写入时顺序相同的Pattern
+     */
+    public static List<Pattern> read(ByteBuffer buffer){
+        if (buffer == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        ByteBuffer in = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (in.remaining() < 16 || in.getInt() != MAGIC){
+                throw new RuntimeException("输入有误: 不是编译结果文件.");
+            }
+            int version = in.getInt();
+            if (version != VERSION){
+                throw new RuntimeException("输入有误: 不支持的编译结果版本: " + version + ".");
+            }
+            int end = in.limit() - 4;
+            ByteBuffer content = in.duplicate();
+            content.position(0);
+            content.limit(end);
+            CRC32 checksum = new CRC32();
+            checksum.update(content);
+            if ((int) checksum.getValue() != in.getInt(end)){
+                throw new RuntimeException("输入有误: 编译结果已损坏.");
+            }
+            in.limit(end);
+            int count = in.getInt();
+            if (count < 0){
+                throw new RuntimeException("输入有误: 编译结果已损坏.");
+            }
+            List<Pattern> patterns = new ArrayList<>(Math.min(count, 1 << 16));
+            for (int i = 0; i < count; i++) {
+                patterns.add(readPattern(in));
+            }
+            return patterns;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e){
+            throw new RuntimeException("输入有误: 编译结果已损坏.");
+        }
+    }
+
+    private static Pattern readPattern(ByteBuffer in){
+        Program.require(in, 4);
+        int flags = in.getInt();
+        String regex = readString(in);
+        if (regex.isEmpty()){
+            throw new RuntimeException("输入有误: 编译结果已损坏.");
+        }
+        Prefilter prefilter = Prefilter.of(readString(in), readString(in));
+        Program program = Program.readFrom(in);
+        Program.require(in, 4);
+        int present = in.getInt();
+        DenseDFA dfa = (present & HAS_DFA) != 0 ? DenseDFA.readFrom(program, in) : null;
+        DenseDFA unanchoredDfa = (present & HAS_UNANCHORED_DFA) != 0 ? DenseDFA.readFrom(program, in) : null;
+        return new Pattern(regex, flags, program, prefilter, dfa, unanchoredDfa);
+    }
+}
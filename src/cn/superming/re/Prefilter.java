@@ -0,0 +1,262 @@
+package cn.superming.re;
+
+/**
+ * 字面量预过滤器
+ * 分析NFA, 找出每个匹配都必须以之开头的字面前缀, 以及每个匹配都必须包含的最长字面串.
+ * 匹配时先用快速的字符串查找跳到可能的位置, 或者直接排除不可能匹配的文本, 再运行状态机.
+ */
+final class Prefilter {
+    private static final int MAX_LITERAL = 64;          // 字面量的最大长度
+    private static final int MAX_ANALYZED_NODES = 1024; // 结点过多时不查找必需的字面串
+
+    private final Literal prefix;       // 字面前缀, 没有时为空
+    private final Literal required;     // 必需的字面串, 没有时为空
+
+    private Prefilter(String prefix, String required){
+        this.prefix = prefix.isEmpty() ? null : new Literal(prefix);
+        this.required = required.isEmpty() ? null : new Literal(required);
+    }
+
+    /**
+     * 分析NFA得到预过滤器
+     * @param program
+     * @return
+     */
+    static Prefilter of(Program program){
+        StringBuilder prefix = new StringBuilder();
+        extend(program, program.start, prefix);
+
+        String required = prefix.toString();
+        if (program.size() <= MAX_ANALYZED_NODES){
+            for (int pc = 0; pc < program.size(); pc++) {
+                if (program.opcode[pc] != Program.CHAR || !isRequired(program, pc)){
+                    continue;
+                }
+                StringBuilder literal = new StringBuilder().append((char) program.edge[pc]);
+                extend(program, program.out[pc], literal);
+                if (literal.length() > required.length()){
+                    required = literal.toString();
+                }
+            }
+        }
+        return new Prefilter(prefix.toString(), required);
+    }
+
+    /**
+     * 由已经分析好的字面量创建, 从编译结果中加载时使用
+     * @param prefix 字面前缀, 没有时为空串
+     * @param required 必需的字面串, 没有时为空串
+     * @return
+     */
+    static Prefilter of(String prefix, String required){
+        return new Prefilter(prefix, required);
+    }
+
+    String prefix(){
+        return prefix == null ? "" : prefix.literal;
+    }
+
+    String required(){
+        return required == null ? "" : required.literal;
+    }
+
+    boolean hasPrefix(){
+        return prefix != null;
+    }
+
+    /**
+     * 判断text中是否可能有匹配, 返回假时一定没有匹配
+     * @param text
+     * @return
+     */
+    boolean mayMatch(CharSequence text){
+        return required == null || required.indexIn(text, 0, text.length()) >= 0;
+    }
+
+    /**
+     * 从from开始查找必需字面串出现的位置, 在它之前结束的文本中一定没有匹配
+     * @param text
+     * @param from
+     * @return 没有必需字面串时返回from, 找不到时返回-1
+     */
+    int nextRequired(CharSequence text, int from){
+        return required == null ? from : required.indexIn(text, from, text.length());
+    }
+
+    /**
+     * 在[from, limit)中查找下一个字面前缀出现的位置, 即下一个可能的匹配起点.
+     * 只读到limit + 前缀长度 - 1为止, 分块查找时每一块不会读到块后面的文本
+     * @param text
+     * @param from
+     * @param limit 起点的上界(不含)
+     * @return 没有前缀时返回from, 找不到时返回-1
+     */
+    int nextCandidate(CharSequence text, int from, int limit){
+        if (prefix == null){
+            return from;
+        }
+        return prefix.indexIn(text, from, limit);
+    }
+
+    /**
+     * 判断text在位置at是否以字面前缀开头
+     * @param text
+     * @param at
+     * @return
+     */
+    boolean startsWithPrefix(CharSequence text, int at){
+        if (prefix == null){
+            return true;
+        }
+        String literal = prefix.literal;
+        if (at + literal.length() > text.length()){
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (text.charAt(at + i) != literal.charAt(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 从seed的epsilon闭包开始, 只要下一个要读入的字符是唯一确定的就把它加入literal
+     * @param program
+     * @param seed
+     * @param literal
+     */
+    private static void extend(Program program, int seed, StringBuilder literal){
+        boolean[] inSet = new boolean[program.size()];
+        int[] set = new int[program.size()];
+        int[] stack = new int[program.size()];
+        int[] seeds = new int[program.size()];
+        int seedCount = 1;
+        seeds[0] = seed;
+
+        while (literal.length() < MAX_LITERAL){
+            java.util.Arrays.fill(inSet, false);
+            int size = 0;
+            int top = 0;
+            for (int i = 0; i < seedCount; i++) {
+                if (!inSet[seeds[i]]){
+                    inSet[seeds[i]] = true;
+                    stack[top++] = seeds[i];
+                }
+            }
+            while (top > 0){
+                int pc = stack[--top];
+                set[size++] = pc;
+                if (program.opcode[pc] == Program.MATCH){
+                    return;                 // 匹配可以在这里结束, 后面的字符不是必需的
+                }
+                if (program.opcode[pc] != Program.EPSILON){
+                    continue;
+                }
+                for (int next : new int[]{program.out[pc], program.out2[pc]}) {
+                    if (next != Program.NONE && !inSet[next]){
+                        inSet[next] = true;
+                        stack[top++] = next;
+                    }
+                }
+            }
+
+            int c = -1;
+            seedCount = 0;
+            for (int i = 0; i < size; i++) {
+                int pc = set[i];
+                if (program.opcode[pc] == Program.EPSILON){
+                    continue;
+                }
+                if (program.opcode[pc] != Program.CHAR || (c != -1 && program.edge[pc] != c)){
+                    return;                 // 下一个字符不唯一
+                }
+                c = program.edge[pc];
+                seeds[seedCount++] = program.out[pc];
+            }
+            if (c == -1){
+                return;
+            }
+            literal.append((char) c);
+        }
+    }
+
+    /**
+     * 判断结点pc是否在每条从开始结点到接收结点的路径上
+     * @param program
+     * @param pc
+     * @return
+     */
+    private static boolean isRequired(Program program, int pc){
+        boolean[] visited = new boolean[program.size()];
+        int[] stack = new int[program.size()];
+        int top = 0;
+        visited[program.start] = true;
+        visited[pc] = true;         // 绕开结点pc
+        if (program.start == pc){
+            return true;
+        }
+        stack[top++] = program.start;
+        while (top > 0){
+            int current = stack[--top];
+            if (program.opcode[current] == Program.MATCH){
+                return false;
+            }
+            for (int next : new int[]{program.out[current], program.out2[current]}) {
+                if (next != Program.NONE && !visited[next]){
+                    visited[next] = true;
+                    stack[top++] = next;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 字面量及其Boyer-Moore-Horspool跳转表
+     */
+    private static final class Literal {
+        private static final int TABLE_SIZE = 256;
+
+        final String literal;
+        private final int[] shift;  // 按字符低8位分组, 同组取最小的跳转距离
+
+        Literal(String literal){
+            this.literal = literal;
+            this.shift = new int[TABLE_SIZE];
+            int length = literal.length();
+            java.util.Arrays.fill(shift, length);
+            for (int i = 0; i < length - 1; i++) {
+                shift[literal.charAt(i) & (TABLE_SIZE - 1)] = length - 1 - i;
+            }
+        }
+
+        /**
+         * 在text中查找起点在[from, limit)中的字面量, 一直找到末尾的String直接使用String.indexOf
+         * @param text
+         * @param from
+         * @param limit 起点的上界(不含)
+         * @return 找不到时返回-1
+         */
+        int indexIn(CharSequence text, int from, int limit){
+            int length = literal.length();
+            int last = length - 1;
+            int end = (int) Math.min(text.length(), (long) limit + last);   // 读到的位置的上界(不含)
+            if (text instanceof String && end == text.length()){
+                return ((String) text).indexOf(literal, from);
+            }
+            int i = from;
+            while (i + last < end){
+                int j = last;
+                while (j >= 0 && text.charAt(i + j) == literal.charAt(j)){
+                    j--;
+                }
+                if (j < 0){
+                    return i;
+                }
+                i += shift[text.charAt(i + last) & (TABLE_SIZE - 1)];
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,554 @@
+package cn.superming.re;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * 扁平化的NFA
+ * 由NFAConstructor构建出的StateNode对象图转换而来, 结点编号是从0开始的连续整数,
+ * 每个结点的操作码、边上字符和两个出边分别存放在int数组中,
+ * 字符集中的ASCII字符用位图表示, 其余字符用有序的闭区间表示.
+ *
+ * 非ASCII字符按等价类划分: 所有字符集区间和字符边把[128, 65536)切成若干段,
+ * 同一段中的字符被每个结点同样对待, DFA只需要为每段建一列转移表.
+ *
+ * 捕获分组的起点和终点是带有槽号的空转移结点, 只有求分组位置的NFA模拟(CaptureMatcher)会读取槽号.
+ *
+ * 用 Regex.POSITION 编译时, positions() 预先求出每个结点的epsilon闭包中的位置(字符结点和接收结点),
+ * NFA模拟把闭包整段加入状态集合, 集合中不再有空转移结点, 见 follow.
+ * 构建完成后不可变.
+ */
+final class Program {
+    // 操作码
+    static final int CHAR = 0;      // 接收单个字符, 字符存放在edge中
+    static final int CHARSET = 1;   // 接收字符集中的字符, 字符集编号存放在edge中
+    static final int EPSILON = 2;   // 空转移, 最多两条出边
+    static final int MATCH = 3;     // 接收状态, 没有出边, 所属正则表达式的编号存放在edge中
+
+    static final int ALPHABET = 128;            // 字符集位图覆盖的字符范围, 也是每个字符单独成类的范围
+    static final int SET_WORDS = ALPHABET / 64; // 每个字符集位图占用的long个数
+    static final int NONE = -1;                 // 没有出边
+    private static final int LATIN1 = 256;      // [ALPHABET, LATIN1)中的字符直接查表得到等价类
+
+    final int[] opcode;     // 结点操作码
+    final int[] edge;       // 边上字符、字符集编号或接收编号
+    final int[] out;        // 第一条出边
+    final int[] out2;       // 第二条出边(只有EPSILON结点使用)
+    final int[] slot;       // EPSILON结点经过时记录位置的槽, 分组n的起点为2n, 终点为2n+1; 不记录时为NONE
+    final int groupCount;   // 捕获分组的个数
+    final long[] charsets;  // 所有字符集中ASCII字符的位图, 每个占SET_WORDS个long
+    final int[][] ranges;   // 所有字符集中非ASCII字符的闭区间, 端点成对存放, 从小到大排列
+    final int start;        // 开始结点
+    final int[] followStart;    // 结点pc的闭包中的位置存放在follow[followStart[pc], followStart[pc + 1])中, 没有调用positions()时为空
+    final int[] follow;         // 按加入线程的优先级排列, 与沿空转移深度优先遍历得到的顺序相同
+    private final int[] classStarts;    // 非ASCII等价类的起点, 第一个为ALPHABET
+    private final int[] latin1Classes;  // [ALPHABET, LATIN1)中字符的等价类
+
+    private Program(int[] opcode, int[] edge, int[] out, int[] out2, int[] slot, long[] charsets, int[][] ranges, int start){
+        this.opcode = opcode;
+        this.edge = edge;
+        this.out = out;
+        this.out2 = out2;
+        this.slot = slot;
+        int maxSlot = NONE;
+        for (int s : slot) {
+            maxSlot = Math.max(maxSlot, s);
+        }
+        this.groupCount = maxSlot < 0 ? 0 : maxSlot / 2;
+        this.charsets = charsets;
+        this.ranges = ranges;
+        this.start = start;
+        this.followStart = null;
+        this.follow = null;
+        this.classStarts = classStarts(opcode, edge, ranges);
+        this.latin1Classes = new int[LATIN1 - ALPHABET];
+        for (int c = ALPHABET; c < LATIN1; c++) {
+            latin1Classes[c - ALPHABET] = searchClass(c);
+        }
+    }
+
+    private Program(Program program, int[] followStart, int[] follow){
+        this.opcode = program.opcode;
+        this.edge = program.edge;
+        this.out = program.out;
+        this.out2 = program.out2;
+        this.slot = program.slot;
+        this.groupCount = program.groupCount;
+        this.charsets = program.charsets;
+        this.ranges = program.ranges;
+        this.start = program.start;
+        this.followStart = followStart;
+        this.follow = follow;
+        this.classStarts = program.classStarts;
+        this.latin1Classes = program.latin1Classes;
+    }
+
+    /**
+     * 消去空转移: 对每个结点求出它的epsilon闭包中的位置, 顺序与NFA模拟时沿空转移深度优先加入线程的顺序相同,
+     * 所以线程的优先级和去重结果都不变. 从字符结点pc读入字符后直接转移到follow中pc的出边的那一段,
+     * 状态集合的大小不超过位置的个数, 每读入一个字符不再需要用栈遍历空转移.
+     *
+     * 闭包可能互相重叠, 表的大小最坏是结点数的平方, 所以只在 Regex.POSITION 时构建. 结点数组与原NFA共用.
+     * @return 带有闭包表的NFA, 已经有闭包表时返回自身
+     */
+    Program positions(){
+        if (follow != null){
+            return this;
+        }
+        int size = size();
+        int[] followStart = new int[size + 1];
+        int[] follow = new int[size];
+        int count = 0;
+        int[] stack = new int[size * 2 + 1];
+        int[] mark = new int[size];
+        Arrays.fill(mark, NONE);
+        for (int pc = 0; pc < size; pc++) {
+            followStart[pc] = count;
+            int top = 0;
+            stack[top++] = pc;
+            while (top > 0){
+                int node = stack[--top];
+                if (mark[node] == pc){
+                    continue;
+                }
+                mark[node] = pc;
+                if (opcode[node] != EPSILON){
+                    if (count == follow.length){
+                        follow = Arrays.copyOf(follow, count * 2);
+                    }
+                    follow[count++] = node;
+                    continue;
+                }
+                if (out2[node] != NONE){
+                    stack[top++] = out2[node];
+                }
+                if (out[node] != NONE){
+                    stack[top++] = out[node];
+                }
+            }
+        }
+        followStart[size] = count;
+        return new Program(this, followStart, Arrays.copyOf(follow, count));
+    }
+
+    /**
+     * 收集所有非ASCII字符边和字符集区间的边界, 作为等价类的起点
+     * @param opcode
+     * @param edge
+     * @param ranges
+     * @return 从小到大排列, 不重复
+     */
+    private static int[] classStarts(int[] opcode, int[] edge, int[][] ranges){
+        TreeSet<Integer> bounds = new TreeSet<>();
+        bounds.add(ALPHABET);
+        for (int pc = 0; pc < opcode.length; pc++) {
+            if (opcode[pc] == CHAR && edge[pc] >= ALPHABET){
+                bounds.add(edge[pc]);
+                bounds.add(edge[pc] + 1);
+            }
+        }
+        for (int[] set : ranges) {
+            for (int i = 0; i < set.length; i += 2) {
+                bounds.add(set[i]);
+                bounds.add(set[i + 1] + 1);
+            }
+        }
+        bounds.remove(Character.MAX_VALUE + 1);     // 超出char范围的边界不需要
+        int[] starts = new int[bounds.size()];
+        int i = 0;
+        for (int bound : bounds) {
+            starts[i++] = bound;
+        }
+        return starts;
+    }
+
+    /**
+     * 将StateNode对象图转换为扁平的数组表示
+     * @param pair NFAConstructor构建出的头结点和尾节点, 只使用头结点
+     * @return
+     */
+    static Program from(NodePair pair){
+        // 从开始结点遍历, 为可达结点重新分配连续编号
+        Map<StateNode, Integer> ids = new IdentityHashMap<>();
+        List<StateNode> nodes = new ArrayList<>();
+        Deque<StateNode> stack = new ArrayDeque<>();
+        ids.put(pair.startNode, 0);
+        nodes.add(pair.startNode);
+        stack.push(pair.startNode);
+        int setCount = 0;
+        while (!stack.isEmpty()){
+            StateNode node = stack.pop();
+            if (node.getEdge() == StateNode.CHARSET){
+                setCount++;
+            }
+            for (StateNode next : new StateNode[]{node.out, node.out2}) {
+                if (next != null && !ids.containsKey(next)){
+                    ids.put(next, nodes.size());
+                    nodes.add(next);
+                    stack.push(next);
+                }
+            }
+        }
+
+        int size = nodes.size();
+        int[] opcode = new int[size];
+        int[] edge = new int[size];
+        int[] out = new int[size];
+        int[] out2 = new int[size];
+        int[] slot = new int[size];
+        long[] charsets = new long[setCount * SET_WORDS];
+        int[][] ranges = new int[setCount][];
+        int setIndex = 0;
+        for (int i = 0; i < size; i++) {
+            StateNode node = nodes.get(i);
+            out[i] = node.out == null ? NONE : ids.get(node.out);
+            out2[i] = node.out2 == null ? NONE : ids.get(node.out2);
+            slot[i] = node.getSlot() == StateNode.NO_SLOT ? NONE : node.getSlot();
+            switch (node.getEdge()){
+                case StateNode.EPSILON:
+                    opcode[i] = EPSILON;
+                    break;
+                case StateNode.EMPTY:
+                    opcode[i] = MATCH;
+                    edge[i] = node.getMatchId();
+                    break;
+                case StateNode.CHARSET:
+                    opcode[i] = CHARSET;
+                    edge[i] = setIndex;
+                    ranges[setIndex] = splitSet(node.inputSet == null ? new int[0] : node.inputSet.toArray(),
+                            charsets, setIndex * SET_WORDS);
+                    setIndex++;
+                    break;
+                default:
+                    opcode[i] = CHAR;
+                    edge[i] = node.getEdge();
+            }
+        }
+        return new Program(opcode, edge, out, out2, slot, charsets, ranges, 0);
+    }
+
+    /**
+     * 构建接收反转语言的NFA, 从后往前读入字符时使用: 原NFA中的每条边都反过来,
+     * 原来的接收结点成为开始结点, 原来的开始结点之后接一个新的接收结点.
+     *
+     * 原结点x在反转后仍编号为x, 作为到达x之后的汇合点(空转移); 原来接收字符c并跳到v的结点u,
+     * 反转后变成从v出发的一个新的字符结点, 接收c后回到u. 汇合点的出边多于两条时用空转移结点串起来.
+     * 字符集的位图和区间与原NFA共用, 所以字符等价类也相同. 反转后不记录分组.
+     * @return
+     */
+    Program reverse(){
+        int size = size();
+        List<List<Integer>> targets = new ArrayList<>(size);   // 反转后每个汇合点的出边
+        for (int i = 0; i < size; i++) {
+            targets.add(new ArrayList<>(2));
+        }
+        int consuming = 0;
+        for (int pc = 0; pc < size; pc++) {
+            if (opcode[pc] == EPSILON){
+                for (int next : new int[]{out[pc], out2[pc]}) {
+                    if (next != NONE){
+                        targets.get(next).add(pc);
+                    }
+                }
+            } else if (opcode[pc] != MATCH){
+                targets.get(out[pc]).add(size + consuming++);  // 新的字符结点按顺序编号
+            }
+        }
+        int matchNode = size + consuming;
+        targets.get(start).add(matchNode);
+
+        List<Integer> starts = new ArrayList<>();
+        int splits = 0;
+        for (int pc = 0; pc < size; pc++) {
+            if (opcode[pc] == MATCH){
+                starts.add(pc);
+            }
+            splits += Math.max(0, targets.get(pc).size() - 2);
+        }
+        splits += Math.max(0, starts.size() - 1);
+
+        int total = matchNode + 1 + splits;
+        int[] newOpcode = new int[total];
+        int[] newEdge = new int[total];
+        int[] newOut = new int[total];
+        int[] newOut2 = new int[total];
+        int[] newSlot = new int[total];
+        Arrays.fill(newOut, NONE);
+        Arrays.fill(newOut2, NONE);
+        Arrays.fill(newSlot, NONE);
+
+        int charNode = size;
+        for (int pc = 0; pc < size; pc++) {
+            newOpcode[pc] = EPSILON;
+            if (opcode[pc] == CHAR || opcode[pc] == CHARSET){
+                newOpcode[charNode] = opcode[pc];
+                newEdge[charNode] = edge[pc];
+                newOut[charNode] = pc;
+                charNode++;
+            }
+        }
+        newOpcode[matchNode] = MATCH;
+        Arrays.fill(newOpcode, matchNode + 1, total, EPSILON);     // 串联用的结点
+
+        int nextSplit = matchNode + 1;
+        for (int pc = 0; pc < size; pc++) {
+            nextSplit = link(pc, targets.get(pc), newOut, newOut2, nextSplit);
+        }
+        int newStart = starts.get(0);
+        if (starts.size() > 1){             // 多个正则合并构建时有多个接收结点, 用一个新的结点并联
+            newStart = nextSplit;
+            link(nextSplit, starts, newOut, newOut2, nextSplit + 1);
+        }
+        return new Program(newOpcode, newEdge, newOut, newOut2, newSlot, charsets, ranges, newStart);
+    }
+
+    /**
+     * 让空转移结点from指向targets中的所有结点, 多于两个时从nextSplit开始分配空转移结点串起来
+     * @return 下一个未分配的结点编号
+     */
+    private static int link(int from, List<Integer> targets, int[] out, int[] out2, int nextSplit){
+        int node = from;
+        for (int i = 0; i < targets.size(); i++) {
+            if (i == 0){
+                out[node] = targets.get(i);
+            } else if (i == targets.size() - 1){
+                out2[node] = targets.get(i);
+            } else {
+                out2[node] = nextSplit;
+                node = nextSplit++;
+                out[node] = targets.get(i);
+            }
+        }
+        return nextSplit;
+    }
+
+    /**
+     * 把字符集中的ASCII字符写入位图, 返回其余字符的区间
+     * @param set 有序的闭区间
+     * @param charsets 位图
+     * @param offset 该字符集位图的起始下标
+     * @return
+     */
+    private static int[] splitSet(int[] set, long[] charsets, int offset){
+        int first = 0;
+        while (first < set.length && set[first] < ALPHABET){
+            for (int c = set[first], hi = Math.min(set[first + 1], ALPHABET - 1); c <= hi; c++) {
+                charsets[offset + (c >> 6)] |= 1L << (c & 63);
+            }
+            if (set[first + 1] >= ALPHABET){
+                break;      // 区间跨过了ALPHABET, 剩下的部分留给区间表
+            }
+            first += 2;
+        }
+        int[] high = Arrays.copyOfRange(set, first, set.length);
+        if (high.length > 0 && high[0] < ALPHABET){
+            high[0] = ALPHABET;
+        }
+        return high;
+    }
+
+    int size() {
+        return opcode.length;
+    }
+
+    /**
+     * @return 字符等价类的个数, 即DFA转移表每行的列数
+     */
+    int classCount() {
+        return ALPHABET + classStarts.length;
+    }
+
+    /**
+     * 返回字符c所属的等价类, ASCII字符各自成类
+     * @param c
+     * @return
+     */
+    int classOf(int c){
+        if (c < ALPHABET){
+            return c;
+        }
+        if (c < LATIN1){
+            return latin1Classes[c - ALPHABET];
+        }
+        return searchClass(c);
+    }
+
+    private int searchClass(int c){
+        int i = Arrays.binarySearch(classStarts, c);
+        return ALPHABET + (i >= 0 ? i : -i - 2);
+    }
+
+    /**
+     * 返回等价类中的一个字符, 同一类中的字符被每个结点同样对待
+     * @param charClass
+     * @return
+     */
+    int representative(int charClass){
+        return charClass < ALPHABET ? charClass : classStarts[charClass - ALPHABET];
+    }
+
+    /**
+     * 返回等价类中最大的字符, 与representative一起给出等价类覆盖的区间
+     * @param charClass
+     * @return
+     */
+    int last(int charClass){
+        if (charClass < ALPHABET){
+            return charClass;
+        }
+        int i = charClass - ALPHABET + 1;
+        return i < classStarts.length ? classStarts[i] - 1 : Character.MAX_VALUE;
+    }
+
+    /**
+     * 估算占用的堆内存字节数
+     * @return
+     */
+    long estimatedBytes(){
+        long bytes = 4L * 5 * opcode.length + 8L * charsets.length + 4L * classStarts.length;
+        if (follow != null){
+            bytes += 4L * (followStart.length + follow.length);
+        }
+        for (int[] set : ranges) {
+            bytes += 16 + 4L * set.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * 写出NFA: 结点个数, 开始结点, 五个结点数组, 然后是字符集的位图和区间
+     * @param out
+     * @throws IOException
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size());
+        out.writeInt(start);
+        for (int[] array : new int[][]{opcode, edge, this.out, out2, slot}) {
+            for (int value : array) {
+                out.writeInt(value);
+            }
+        }
+        out.writeInt(ranges.length);
+        for (long word : charsets) {
+            out.writeLong(word);
+        }
+        for (int[] set : ranges) {
+            out.writeInt(set.length);
+            for (int value : set) {
+                out.writeInt(value);
+            }
+        }
+    }
+
+    /**
+     * 读取writeTo写出的NFA
+     * @param buffer 从当前位置开始读取, 读完后位置移到NFA之后
+     * @return
+     */
+    static Program readFrom(ByteBuffer buffer){
+        require(buffer, 8);
+        int size = buffer.getInt();
+        int start = buffer.getInt();
+        if (size <= 0 || start < 0 || start >= size){
+            throw new RuntimeException("输入有误: 编译结果已损坏.");
+        }
+        require(buffer, 20L * size + 4);
+        int[][] arrays = new int[5][size];
+        for (int[] array : arrays) {
+            buffer.asIntBuffer().get(array);
+            buffer.position(buffer.position() + 4 * size);
+        }
+        int setCount = buffer.getInt();
+        if (setCount < 0 || setCount > size){
+            throw new RuntimeException("输入有误: 编译结果已损坏.");
+        }
+        require(buffer, 8L * SET_WORDS * setCount);
+        long[] charsets = new long[setCount * SET_WORDS];
+        buffer.asLongBuffer().get(charsets);
+        buffer.position(buffer.position() + 8 * charsets.length);
+        int[][] ranges = new int[setCount][];
+        for (int i = 0; i < setCount; i++) {
+            require(buffer, 4);
+            int length = buffer.getInt();
+            if (length < 0 || length % 2 != 0){
+                throw new RuntimeException("输入有误: 编译结果已损坏.");
+            }
+            require(buffer, 4L * length);
+            ranges[i] = new int[length];
+            buffer.asIntBuffer().get(ranges[i]);
+            buffer.position(buffer.position() + 4 * ranges[i].length);
+        }
+
+        boolean hasMatch = false;
+        for (int pc = 0; pc < size; pc++) {     // 校验编号, 避免匹配时越界
+            int opcode = arrays[0][pc];
+            int edge = arrays[1][pc];
+            if (opcode < CHAR || opcode > MATCH || (opcode == CHARSET && (edge < 0 || edge >= setCount))
+                    || arrays[2][pc] < NONE || arrays[2][pc] >= size || arrays[3][pc] < NONE || arrays[3][pc] >= size
+                    || ((opcode == CHAR || opcode == CHARSET) && arrays[2][pc] == NONE)
+                    || (arrays[4][pc] != NONE && (arrays[4][pc] < 2 || arrays[4][pc] > 2 * size || opcode != EPSILON))){
+                throw new RuntimeException("输入有误: 编译结果已损坏.");
+            }
+            hasMatch |= opcode == MATCH;
+        }
+        if (!hasMatch){
+            throw new RuntimeException("输入有误: 编译结果已损坏.");
+        }
+        return new Program(arrays[0], arrays[1], arrays[2], arrays[3], arrays[4], charsets, ranges, start);
+    }
+
+    /**
+     * 读取之前检查buffer中至少还有bytes个字节, 截断的数据在这里被拒绝, 不会抛出BufferUnderflowException
+     * @param buffer
+     * @param bytes
+     */
+    static void require(ByteBuffer buffer, long bytes){
+        if (buffer.remaining() < bytes){
+            throw new RuntimeException("输入有误: 编译结果已损坏.");
+        }
+    }
+
+    /**
+     * 判断结点pc能否接收字符c
+     * @param pc 结点编号
+     * @param c 输入字符
+     * @return
+     */
+    boolean accepts(int pc, int c){
+        switch (opcode[pc]){
+            case CHAR:
+                return edge[pc] == c;
+            case CHARSET:
+                if (c < ALPHABET){
+                    return (charsets[edge[pc] * SET_WORDS + (c >> 6)] & (1L << (c & 63))) != 0;
+                }
+                return inRanges(ranges[edge[pc]], c);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 二分查找c是否落在某个闭区间中
+     * @param set 有序的闭区间
+     * @param c
+     * @return
+     */
+    private static boolean inRanges(int[] set, int c){
+        int low = 0;
+        int high = set.length / 2 - 1;
+        while (low <= high){
+            int middle = (low + high) >>> 1;
+            if (c < set[middle * 2]){
+                high = middle - 1;
+            } else if (c > set[middle * 2 + 1]){
+                low = middle + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,157 @@
+package cn.superming.re;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * 匹配统计
+ * 用系统属性 cn.superming.re.metrics=true 打开, 默认关闭. 开关是常量, 关闭时计数的代码会被JIT整个去掉,
+ * 匹配的热路径上没有任何额外开销.
+ *
+ * 打开后每个Pattern都有自己的 PatternStats, 并在平台MBeanServer上注册 cn.superming.re:type=RegexMetrics,
+ * 汇总所有还没有被回收的Pattern; 也可以通过 setListener 设置回调, 自己汇总每次编译和匹配.
+ *
+ * 与开关无关, 编译和匹配还会发出JFR事件 cn.superming.re.Compile 和 cn.superming.re.Match,
+ * 只记录耗时超过阈值的编译和匹配, 没有开始记录时不产生开销.
+ */
+public final class RegexMetrics implements RegexMetricsMBean {
+    static final boolean ENABLED = Boolean.getBoolean("cn.superming.re.metrics");
+    static final String OBJECT_NAME = "cn.superming.re:type=RegexMetrics";
+
+    private static final Map<Pattern, Boolean> PATTERNS = new WeakHashMap<>();  // 由PATTERNS自身的锁保护
+    private static volatile MetricsListener listener;
+
+    static {
+        if (ENABLED){
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new RegexMetrics(), new ObjectName(OBJECT_NAME));
+            } catch (JMException | SecurityException e){
+                // 已经注册过(例如被多个类加载器加载)或者没有权限时只是不能通过JMX查看
+            }
+        }
+    }
+
+    private RegexMetrics(){
+    }
+
+    /**
+     * @return 是否打开了统计
+     */
+    public static boolean isEnabled(){
+        return ENABLED;
+    }
+
+    /**
+     * 设置统计回调, 为空时取消. 只有打开统计时才会被调用
+     * @param listener
+     */
+    public static void setListener(MetricsListener listener){
+        RegexMetrics.listener = listener;
+    }
+
+    /**
+     * 所有还没有被回收的Pattern的统计
+     * @return
+     */
+    public static List<PatternStats> snapshot(){
+        List<PatternStats> stats = new ArrayList<>();
+        synchronized (PATTERNS){
+            for (Pattern pattern : PATTERNS.keySet()) {
+                stats.add(pattern.stats());
+            }
+        }
+        return stats;
+    }
+
+    static void register(Pattern pattern){
+        synchronized (PATTERNS){
+            PATTERNS.put(pattern, Boolean.TRUE);
+        }
+    }
+
+    static void compiled(Pattern pattern, long nanos){
+        pattern.stats().recordCompile(nanos);
+        MetricsListener current = listener;
+        if (current != null){
+            current.onCompile(pattern, nanos);
+        }
+    }
+
+    static void matched(Pattern pattern, String operation, long nanos, long chars, long visited, long transitions){
+        pattern.stats().recordMatch(nanos, chars, visited, transitions);
+        MetricsListener current = listener;
+        if (current != null){
+            current.onMatch(pattern, operation, chars, nanos);
+        }
+    }
+
+    private static long sum(ToLongFunction<PatternStats> counter){
+        long sum = 0;
+        for (PatternStats stats : snapshot()) {
+            sum += counter.applyAsLong(stats);
+        }
+        return sum;
+    }
+
+    @Override
+    public int getPatternCount() {
+        synchronized (PATTERNS){
+            return PATTERNS.size();
+        }
+    }
+
+    @Override
+    public long getCompileNanos() {
+        return sum(PatternStats::compileNanos);
+    }
+
+    @Override
+    public long getMatchCount() {
+        return sum(PatternStats::matchCount);
+    }
+
+    @Override
+    public long getMatchNanos() {
+        return sum(PatternStats::matchNanos);
+    }
+
+    @Override
+    public long getCharsScanned() {
+        return sum(PatternStats::charsScanned);
+    }
+
+    @Override
+    public long getNfaStatesVisited() {
+        return sum(PatternStats::nfaStatesVisited);
+    }
+
+    @Override
+    public long getDfaCacheHits() {
+        return sum(PatternStats::dfaCacheHits);
+    }
+
+    @Override
+    public long getDfaCacheMisses() {
+        return sum(PatternStats::dfaCacheMisses);
+    }
+
+    @Override
+    public String[] topPatterns(int limit) {
+        List<PatternStats> stats = snapshot();
+        stats.sort(Collections.reverseOrder(Comparator.comparingLong(PatternStats::matchNanos)));
+        int count = Math.max(0, Math.min(limit, stats.size()));
+        String[] lines = new String[count];
+        for (int i = 0; i < count; i++) {
+            lines[i] = stats.get(i).toString();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,30 @@
+package cn.superming.re;
+
+/**
+ * RegexMetrics的JMX接口, 注册名为 cn.superming.re:type=RegexMetrics.
+ * 计数是所有还没有被回收的Pattern之和
+ */
+public interface RegexMetricsMBean {
+    int getPatternCount();
+
+    long getCompileNanos();
+
+    long getMatchCount();
+
+    long getMatchNanos();
+
+    long getCharsScanned();
+
+    long getNfaStatesVisited();
+
+    long getDfaCacheHits();
+
+    long getDfaCacheMisses();
+
+    /**
+     * 按匹配总耗时从高到低列出Pattern
+     * @param limit 最多列出的个数
+     * @return 每个Pattern一行统计
+     */
+    String[] topPatterns(int limit);
+}
@@ -0,0 +1,277 @@
+package cn.superming.re;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 正则表达式集合
+ * 把多个正则表达式合并成一个状态机, 每个接收状态记录自己所属正则表达式的编号,
+ * 扫描一遍文本就能得到所有匹配的正则表达式, 耗时只与文本长度有关, 与正则表达式的个数无关.
+ * 判断的是文本中是否包含非空匹配, ^ 和 $ 分别表示文本的开头和结尾.
+ * 以 Regex.UTF8 编译时状态机按UTF-8字节构建, 可以直接扫描ByteBuffer, 字符串会先编码成UTF-8字节.
+ * 构建完成后不可变, 可以被多个线程共享.
+ */
+public final class RegexSet {
+    private final String[] regexes;         // 下标即编号
+    private final int flags;
+    private final boolean[] endWithDollar;  // 正则表达式是否以 $ 结尾
+    private final Program program;
+    private final int seed;                 // 不以 ^ 开头的正则表达式的入口, 全部以 ^ 开头时为Program.NONE
+    private final LazyDFA dfa;              // 为空时只用NFA模拟
+
+    private RegexSet(String[] regexes, int flags){
+        this.regexes = regexes;
+        this.flags = flags;
+        this.endWithDollar = new boolean[regexes.length];
+
+        String[][] bodies = new String[2][regexes.length];  // [0]: 不以 ^ 开头, [1]: 以 ^ 开头
+        int[][] ids = new int[2][regexes.length];
+        int[] counts = new int[2];
+        for (int i = 0; i < regexes.length; i++) {
+            String regex = regexes[i];
+            if (regex == null)
+                throw new RuntimeException("输入有误: 不能为空指针.");
+
+            boolean startWithCaret = regex.startsWith("^");
+            endWithDollar[i] = Pattern.endsWithDollar(regex);
+            int begin = startWithCaret ? 1 : 0;
+            int end = endWithDollar[i] ? regex.length() - 1 : regex.length();
+            if (begin >= end){
+                throw new RuntimeException("输入有误: regex不能为空.");
+            }
+
+            int group = startWithCaret ? 1 : 0;
+            bodies[group][counts[group]] = regex.substring(begin, end);
+            ids[group][counts[group]] = i;
+            counts[group]++;
+        }
+
+        NodePair[] unions = NFAConstructor.local().constructUnion(
+                new String[][]{Arrays.copyOf(bodies[0], counts[0]), Arrays.copyOf(bodies[1], counts[1])}, ids, flags);
+        NodePair unanchored = unions[0];
+        NodePair anchored = unions[1];
+        NodePair pair = new NodePair();
+        Program merged;
+        if (unanchored.startNode != null && anchored.startNode != null){
+            pair.startNode = new StateNode();
+            pair.startNode.out = unanchored.startNode;
+            pair.startNode.out2 = anchored.startNode;
+            merged = Program.from(pair);
+            seed = merged.out[merged.start];        // 开始结点的第一条出边即不以 ^ 开头的部分
+        } else if (unanchored.startNode != null){
+            merged = Program.from(unanchored);
+            seed = merged.start;
+        } else {
+            merged = Program.from(anchored);
+            seed = Program.NONE;
+        }
+        program = (flags & Regex.POSITION) != 0 ? merged.positions() : merged;
+        dfa = (flags & Regex.PIKE_VM) == 0 ? new LazyDFA(program, seed) : null;
+    }
+
+    /**
+     * 编译一组正则表达式
+     * @param regexes 正则表达式, 在列表中的下标即其编号
+     * @param flags 编译选项, 如 Regex.CASE_INSENSITIVE
+     * @return
+     */
+    public static RegexSet compile(List<String> regexes, int flags){
+        if (regexes == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        if (regexes.isEmpty()){
+            throw new RuntimeException("输入有误: 正则表达式集合不能为空.");
+        }
+        return new RegexSet(regexes.toArray(new String[0]), flags);
+    }
+
+    public static RegexSet compile(String... regexes){
+        return compile(Arrays.asList(regexes), 0);
+    }
+
+    public int size() {
+        return regexes.length;
+    }
+
+    public String pattern(int id) {
+        return regexes[id];
+    }
+
+    public int flags() {
+        return flags;
+    }
+
+    /**
+     * 扫描一遍text, 返回所有在text中有匹配的正则表达式的编号
+     * @param text
+     * @return 从小到大排列的编号
+     */
+    public int[] matches(CharSequence text){
+        if (text == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        if ((flags & Regex.UTF8) != 0){
+            return matches(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        return scan(text);
+    }
+
+    /**
+     * 扫描一遍ByteBuffer中剩余的字节, 不改变buffer的位置
+     * @param buffer UTF8模式下是UTF-8字节, 否则每个字节当作一个字符
+     * @return 从小到大排列的编号
+     */
+    public int[] matches(ByteBuffer buffer){
+        if (buffer == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        return scan(new ByteSequence(buffer, buffer.position(), buffer.remaining()));
+    }
+
+    private int[] scan(CharSequence text){
+        boolean[] matched = new boolean[regexes.length];
+        int count = dfa == null || dfa.failed() ? -1 : scanWithDfa(text, matched);
+        if (count < 0){             // DFA状态过多, 退回NFA模拟
+            Arrays.fill(matched, false);
+            count = simulate(text, matched);
+        }
+
+        int[] result = new int[count];
+        for (int i = 0, j = 0; i < matched.length; i++) {
+            if (matched[i]) result[j++] = i;
+        }
+        return result;
+    }
+
+    /**
+     * 判断是否有任何一个正则表达式在text中有匹配
+     * @param text
+     * @return
+     */
+    public boolean matchesAny(CharSequence text){
+        return matches(text).length > 0;
+    }
+
+    /**
+     * 用DFA扫描text
+     * @param text
+     * @param matched 记录已经匹配的编号
+     * @return 匹配的个数, DFA状态数超过限制时返回-1
+     */
+    private int scanWithDfa(CharSequence text, boolean[] matched){
+        int count = 0;
+        int state = dfa.start();
+        int lastMerged = LazyDFA.UNKNOWN;
+        for (int i = 0; i < text.length(); i++) {
+            state = dfa.next(state, text.charAt(i));
+            if (state == LazyDFA.FAILED){
+                return -1;
+            }
+            if (state == LazyDFA.DEAD && seed == Program.NONE){     // 全部以 ^ 开头时, 死状态不会再接收
+                return count;
+            }
+            if (LazyDFA.isAccepting(state) && state != lastMerged){
+                count += merge(dfa.matchIds(state), matched, false);
+                lastMerged = state;
+                if (count == regexes.length){   // 全部都已匹配, 不需要再扫描
+                    return count;
+                }
+            }
+        }
+        if (text.length() > 0 && LazyDFA.isAccepting(state)){
+            count += merge(dfa.matchIds(state), matched, true);
+        }
+        return count;
+    }
+
+    /**
+     * NFA模拟
+     * @param text
+     * @param matched 记录已经匹配的编号
+     * @return 匹配的个数
+     */
+    private int simulate(CharSequence text, boolean[] matched){
+        SparseSet clist = new SparseSet(program.size());
+        SparseSet nlist = new SparseSet(program.size());
+        int[] stack = new int[program.size() * 2 + 1];
+        int count = 0;
+        addThread(clist, stack, program.start);
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            nlist.clear();
+            for (int k = 0; k < clist.size(); k++) {
+                int pc = clist.get(k);
+                if (program.accepts(pc, c)){
+                    addThread(nlist, stack, program.out[pc]);
+                }
+            }
+            SparseSet tmp = clist;
+            clist = nlist;
+            nlist = tmp;
+
+            boolean atEnd = i == text.length() - 1;
+            for (int k = 0; k < clist.size(); k++) {
+                int pc = clist.get(k);
+                if (program.opcode[pc] == Program.MATCH && !matched[program.edge[pc]]
+                        && (atEnd || !endWithDollar[program.edge[pc]])){
+                    matched[program.edge[pc]] = true;
+                    count++;
+                }
+            }
+            if (seed != Program.NONE && !atEnd){
+                addThread(clist, stack, seed);      // 下一个位置也可以作为起点
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 把接收编号合并到结果中
+     * @param ids
+     * @param matched
+     * @param atEnd 是否已经到达文本末尾, 只有在末尾才接收以 $ 结尾的正则表达式
+     * @return 新增的匹配个数
+     */
+    private int merge(int[] ids, boolean[] matched, boolean atEnd){
+        int count = 0;
+        for (int id : ids) {
+            if (!matched[id] && (atEnd || !endWithDollar[id])){
+                matched[id] = true;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void addThread(SparseSet list, int[] stack, int pc){
+        if (program.follow != null){
+            for (int k = program.followStart[pc], end = program.followStart[pc + 1]; k < end; k++) {
+                int next = program.follow[k];
+                if (!list.contains(next)){
+                    list.add(next);
+                }
+            }
+            return;
+        }
+        int top = 0;
+        stack[top++] = pc;
+        while (top > 0){
+            pc = stack[--top];
+            if (list.contains(pc)){
+                continue;
+            }
+            list.add(pc);
+            if (program.opcode[pc] == Program.EPSILON){
+                if (program.out2[pc] != Program.NONE){
+                    stack[top++] = program.out2[pc];
+                }
+                if (program.out[pc] != Program.NONE){
+                    stack[top++] = program.out[pc];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package cn.superming.re;
+
+/**
+ * 稀疏集合
+ * 保存[0, capacity)中的整数, 插入、查询和清空都是O(1), 遍历顺序即插入顺序.
+ * 清空时不需要重置数组, 所以可以在每个字符之后反复复用而不产生垃圾.
+ */
+final class SparseSet {
+    private final int[] dense;      // 按插入顺序存放元素
+    private final int[] sparse;     // 元素在dense中的下标
+    private int size;
+
+    SparseSet(int capacity){
+        dense = new int[capacity];
+        sparse = new int[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int index){
+        return dense[index];
+    }
+
+    boolean contains(int value){
+        int index = sparse[value];
+        return index < size && dense[index] == value;
+    }
+
+    /**
+     * 加入元素, 调用方需保证元素不在集合中
+     * @param value
+     */
+    void add(int value){
+        sparse[value] = size;
+        dense[size++] = value;
+    }
+
+    /**
+     * 只保留前size个元素
+     * @param size
+     */
+    void truncate(int size){
+        this.size = size;
+    }
+
+    void clear(){
+        size = 0;
+    }
+
+    boolean isEmpty(){
+        return size == 0;
+    }
+}
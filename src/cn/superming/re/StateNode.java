@@ -1,8 +1,5 @@
 package cn.superming.re;
 
-import java.util.HashSet;
-import java.util.Set;
-
 class NodePair {
     StateNode startNode;
     StateNode endNode;
@@ -10,25 +7,25 @@ class NodePair {
 
 class StateNode {
 
-    private static final int ASCII_COUNT = 127;
-
     private int edge;         // 边上字符
     // 关于边上字符的特殊定义
     static final int EPSILON = -1;  // 空转移ε
     static final int CHARSET = -2;  // []中的字符集
     static final int EMPTY = -3;    // 没有出去的边
+    static final int NO_SLOT = -1;  // 不记录位置的空转移
 
-    Set<Byte> inputSet;        // 解析到[...]时,将括号内的字符放入该集合中
+    CharRanges inputSet;       // 解析到[...]时,将括号内的字符放入该集合中, 只有字符集结点才分配
     StateNode out;
     StateNode out2;
 
     private int nodeNum;      // 结点编号
+    private int matchId;      // 接收状态所属正则表达式的编号(多个正则合并构建时使用)
+    private int slot;         // 空转移经过时记录当前位置的槽: 分组n的起点为2n, 终点为2n+1
 
     /**
      * 构建节点
      */
     StateNode(){
-        inputSet = new HashSet<Byte>();
         initState(); // 如果是普通节点或者开始，将边初始化为 空转移
     }
 
@@ -48,34 +45,46 @@ class StateNode {
         this.nodeNum = nodeNum;
     }
 
+    int getMatchId() {
+        return matchId;
+    }
+
+    void setMatchId(int matchId) {
+        this.matchId = matchId;
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    void setSlot(int slot) {
+        this.slot = slot;
+    }
+
     /**
      * 初始化结点信息，默认初始化边为空转移
      */
     void initState(){
-        inputSet.clear();
+        if (inputSet != null){
+            inputSet.clear();
+        }
         out = null;
         out2 = null;
         nodeNum = -1;
+        matchId = 0;
+        slot = NO_SLOT;
         edge = EPSILON;
     }
 
     /**
-     * 添加字符到字符集中
-     * @param b 需要加入的字符
-     */
-    void addToSet(byte b){
-        inputSet.add(b);
-    }
-    /**
-     * 对字符集进行取反操作
+     * 添加闭区间[lo, hi]中的字符到字符集中
+     * @param lo
+     * @param hi
      */
-    void setNegation(){
-        Set<Byte> newSet = new HashSet<>();
-        for (byte b = 0; b < ASCII_COUNT; b++) {
-            if (!inputSet.contains(b)){
-                newSet.add(b);
-            }
+    void addToSet(int lo, int hi){
+        if (inputSet == null){
+            inputSet = new CharRanges();
         }
-        inputSet = newSet;
+        inputSet.add(lo, hi);
     }
 }
@@ -1,17 +1,45 @@
 package cn.superming.re;
 
+import java.util.Arrays;
+
+/**
+ * 结点池
+ * 按正则表达式的长度预先分配结点, 不够时自动扩容, 没有结点个数的限制.
+ * 构建完成的NFA会被Program复制成数组, 所以下一次构建前可以调用reset把所有结点收回重用.
+ */
 class StateNodePool {
-    private static final int MAX_NODE_NUM = 64;    // 最大节点个数
-    private StateNode[] stateNodeArray = null;     // 节点数组和结点栈共同维护节点池
-    private int arrayIndex = 0;  // 数组下标, 跳过开始节点
+    private static final int NODES_PER_CHAR = 2;      // 每个字符或运算符最多新建两个结点
+    private static final int MAX_RETAINED = 4096;     // reset时最多保留的结点个数, 避免长期占用大量内存
+    private StateNode[] stateNodeArray;    // 节点数组, 下标小于allocated的结点已经创建
+    private int allocated = 0;   // 已经创建的结点个数
+    private int arrayIndex = 0;  // 数组下标, 下一个分配的结点
     private int stateNodeID = 0; // 结点编号
 
     StateNodePool() {
-        stateNodeArray = new StateNode[MAX_NODE_NUM];   //初始化结点池
+        this(0);
+    }
+
+    /**
+     * @param regexLength 正则表达式的长度, 用于估计需要的结点个数
+     */
+    StateNodePool(int regexLength) {
+        stateNodeArray = new StateNode[expectedNodes(regexLength)];
+    }
 
-        for (int i = 0; i < MAX_NODE_NUM; i++) {
-            stateNodeArray[i] = new StateNode();
+    /**
+     * 收回所有结点, 为长度为regexLength的正则表达式做准备
+     * @param regexLength
+     */
+    void reset(int regexLength){
+        int expected = expectedNodes(regexLength);
+        if (stateNodeArray.length > Math.max(expected, MAX_RETAINED)){    // 上一次的正则表达式特别长, 释放多余的结点
+            stateNodeArray = Arrays.copyOf(stateNodeArray, Math.max(expected, MAX_RETAINED));
+            allocated = Math.min(allocated, stateNodeArray.length);
+        } else if (stateNodeArray.length < expected){
+            stateNodeArray = Arrays.copyOf(stateNodeArray, expected);
         }
+        arrayIndex = 0;
+        stateNodeID = 0;
     }
 
     /**
@@ -19,17 +47,24 @@ class StateNodePool {
      * @return
      */
     StateNode getStateNode(){
-        if (++stateNodeID >= MAX_NODE_NUM-1){
-            throw new RuntimeException("普通节点数量超过限制.");
+        if (arrayIndex == stateNodeArray.length){
+            stateNodeArray = Arrays.copyOf(stateNodeArray, stateNodeArray.length * 2);
+        }
+        if (arrayIndex == allocated){       // 结点在第一次使用时才创建
+            stateNodeArray[allocated++] = new StateNode();
         }
 
         StateNode node = stateNodeArray[arrayIndex];
         arrayIndex++;
 
         node.initState();
-        node.setNodeNum(stateNodeID);
+        node.setNodeNum(++stateNodeID);
         node.setEdge(StateNode.EPSILON);
 
         return node;
     }
+
+    private static int expectedNodes(int regexLength){
+        return Math.max(16, NODES_PER_CHAR * regexLength + 2);
+    }
 }
@@ -0,0 +1,374 @@
+package cn.superming.re;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * 流式匹配器
+ * 在多次feed调用之间保存状态机的当前状态, 数据可以分块到达, 不需要把整个文本读入内存.
+ * 匹配采用最左最长、互不重叠的语义, 每找到一个匹配就以流中的绝对偏移回调MatchListener.
+ *
+ * 内存占用与NFA结点数成正比, 只有在一个候选匹配还在尝试变长时,
+ * 才需要暂存候选终点之后读入的字符, 以便候选确定后从终点重新扫描.
+ * 暂存的字符数有上限(setMaxLookahead, 默认 DEFAULT_MAX_LOOKAHEAD), 达到上限时不再等待候选匹配变长,
+ * 直接报告当前的候选匹配, 所以无界的流上内存也是有界的. 只有候选终点之后超过上限个字符才能决定的
+ * 更长或更靠左的匹配会因此被截断.
+ * 以 ^ 开头的正则只匹配流的开头, 以 $ 结尾的正则只在finish时报告在流末尾结束的匹配.
+ *
+ * Pattern以 Regex.UTF8 编译时, 字节按UTF-8原样读入, 字符先编码成UTF-8再读入, 偏移都按字节计算;
+ * 否则字符原样读入, 每个字节当作一个字符(ISO-8859-1).
+ * StreamMatcher不是线程安全的.
+ */
+public final class StreamMatcher {
+    public static final int DEFAULT_MAX_LOOKAHEAD = 1 << 20;    // 默认最多暂存的字符数
+    private static final int BUFFER_SIZE = 8192;   // 从Reader或Channel读取时的缓冲区大小
+
+    private final Program program;
+    private final MatchListener listener;
+    private final boolean startWithCaret;
+    private final boolean endWithDollar;
+    private final boolean utf8;         // 是否把字符编码成UTF-8字节再读入
+    private char pendingHigh;           // UTF8模式下等待低代理字符的高代理字符, 没有时为0
+
+    private SparseSet clist;            // 当前线程所在结点, 按起点从小到大排列
+    private SparseSet nlist;
+    private long[] cstart;              // 线程的起点, 下标与clist一致
+    private long[] nstart;
+    private final int[] stack;          // 求epsilon闭包用的显式栈
+
+    private long position;              // 下一个字符在流中的偏移
+    private long matchStart = -1;       // 当前候选匹配的起点, 没有候选时为-1
+    private long matchEnd;              // 当前候选匹配的终点
+    private char[] lookahead = new char[16];   // 候选匹配终点之后已经读入的字符
+    private int lookaheadCount;
+    private int maxLookahead = DEFAULT_MAX_LOOKAHEAD;  // lookahead的上限, 达到时直接报告候选匹配
+    private char[] replay = new char[16];      // 等待重新扫描的字符
+    private int replayHead;
+    private int replayCount;
+    private char[] charBuffer;          // 从Reader读取时复用的缓冲区
+    private ByteBuffer byteBuffer;      // 从Channel读取时复用的缓冲区
+
+    StreamMatcher(Pattern pattern, MatchListener listener){
+        if (listener == null)
+            throw new RuntimeException("输入有误: 不能为空指针.");
+
+        this.program = pattern.program();
+        this.listener = listener;
+        this.startWithCaret = pattern.startWithCaret();
+        this.endWithDollar = pattern.endWithDollar();
+        this.utf8 = pattern.isUtf8();
+
+        clist = new SparseSet(program.size());
+        nlist = new SparseSet(program.size());
+        cstart = new long[program.size()];
+        nstart = new long[program.size()];
+        stack = new int[program.size() * 2 + 1];
+    }
+
+    /**
+     * 设置候选匹配终点之后最多暂存的字符数(UTF8模式下是字节数), 达到上限时直接报告当前的候选匹配.
+     * 上限越小内存越少, 但需要更长的前瞻才能确定的匹配会被截断
+     * @param maxLookahead 大于0
+     */
+    public void setMaxLookahead(int maxLookahead){
+        if (maxLookahead <= 0){
+            throw new RuntimeException("输入有误: maxLookahead必须大于0.");
+        }
+        this.maxLookahead = maxLookahead;
+    }
+
+    public int getMaxLookahead() {
+        return maxLookahead;
+    }
+
+    /**
+     * 读入一个字符
+     * @param c
+     */
+    public void feed(char c){
+        if (!utf8){
+            feedUnit(c);
+            return;
+        }
+        if (pendingHigh != 0){
+            char high = pendingHigh;
+            pendingHigh = 0;
+            if (Character.isLowSurrogate(c)){
+                feedCodePoint(Character.toCodePoint(high, c));
+                return;
+            }
+            feedCodePoint('?');         // 单独的代理字符与String.getBytes一样编码为 ?
+        }
+        if (Character.isHighSurrogate(c)){
+            pendingHigh = c;
+        } else {
+            feedCodePoint(Character.isLowSurrogate(c) ? '?' : c);
+        }
+    }
+
+    /**
+     * 读入一个状态机边上的单位: UTF8模式下是一个字节, 否则是一个字符
+     * @param c
+     */
+    void feedUnit(char c){
+        consume(c);
+        drainReplay();
+    }
+
+    /**
+     * 把码点编码成UTF-8字节后读入
+     * @param c
+     */
+    private void feedCodePoint(int c){
+        if (c < 0x80){
+            feedUnit((char) c);
+        } else if (c < 0x800){
+            feedUnit((char) (0xC0 | (c >> 6)));
+            feedUnit((char) (0x80 | (c & 0x3F)));
+        } else if (c < 0x10000){
+            feedUnit((char) (0xE0 | (c >> 12)));
+            feedUnit((char) (0x80 | ((c >> 6) & 0x3F)));
+            feedUnit((char) (0x80 | (c & 0x3F)));
+        } else {
+            feedUnit((char) (0xF0 | (c >> 18)));
+            feedUnit((char) (0x80 | ((c >> 12) & 0x3F)));
+            feedUnit((char) (0x80 | ((c >> 6) & 0x3F)));
+            feedUnit((char) (0x80 | (c & 0x3F)));
+        }
+    }
+
+    /**
+     * 读入字符数组中的一段
+     * @param chars
+     * @param off 起始下标
+     * @param len 长度
+     */
+    public void feed(char[] chars, int off, int len){
+        for (int i = off; i < off + len; i++) {
+            feed(chars[i]);
+        }
+    }
+
+    /**
+     * 读入CharBuffer中剩余的全部字符
+     * @param buffer
+     */
+    public void feed(CharBuffer buffer){
+        while (buffer.hasRemaining()){
+            feed(buffer.get());
+        }
+    }
+
+    /**
+     * 读入ByteBuffer中剩余的全部字节, UTF8模式下按UTF-8读入, 否则每个字节当作一个字符(ISO-8859-1), 偏移按字节计算
+     * @param buffer
+     */
+    public void feed(ByteBuffer buffer){
+        while (buffer.hasRemaining()){
+            feedUnit((char) (buffer.get() & 0xff));
+        }
+    }
+
+    /**
+     * 读完整个Reader并结束匹配
+     * @param reader
+     * @throws IOException
+     */
+    public void scan(Reader reader) throws IOException {
+        if (charBuffer == null){
+            charBuffer = new char[BUFFER_SIZE];
+        }
+        int count;
+        while ((count = reader.read(charBuffer)) != -1){
+            feed(charBuffer, 0, count);
+        }
+        finish();
+    }
+
+    /**
+     * 读完整个Channel并结束匹配
+     * @param channel
+     * @throws IOException
+     */
+    public void scan(ReadableByteChannel channel) throws IOException {
+        if (byteBuffer == null){
+            byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        while (channel.read(byteBuffer) != -1){
+            byteBuffer.flip();
+            feed(byteBuffer);
+            byteBuffer.clear();
+        }
+        finish();
+    }
+
+    /**
+     * 流已结束: 报告还没有确定的匹配, 之后可以调用reset重新开始
+     */
+    public void finish(){
+        if (pendingHigh != 0){
+            pendingHigh = 0;
+            feedCodePoint('?');
+        }
+        if (endWithDollar){
+            for (int i = 0; i < clist.size(); i++) {     // 第一个接收线程的起点最小
+                if (program.opcode[clist.get(i)] == Program.MATCH){
+                    listener.onMatch(cstart[i], position);
+                    break;
+                }
+            }
+            clist.clear();
+            return;
+        }
+        while (matchStart >= 0){
+            resolve();
+            drainReplay();
+        }
+    }
+
+    /**
+     * 清空状态, 从偏移0开始一个新的流
+     */
+    public void reset(){
+        clist.clear();
+        pendingHigh = 0;
+        position = 0;
+        matchStart = -1;
+        lookaheadCount = 0;
+        replayHead = 0;
+        replayCount = 0;
+    }
+
+    /**
+     * @return 已经扫描到的流偏移
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * 扫描一个字符
+     * @param c
+     */
+    private void consume(char c){
+        if (matchStart < 0 && (!startWithCaret || position == 0)){
+            addThread(clist, cstart, program.start, position);  // 起点最大, 加在末尾
+        }
+
+        nlist.clear();
+        for (int i = 0; i < clist.size(); i++) {
+            int pc = clist.get(i);
+            if (program.accepts(pc, c)){
+                addThread(nlist, nstart, program.out[pc], cstart[i]);
+            }
+        }
+        SparseSet tmp = clist;
+        clist = nlist;
+        nlist = tmp;
+        long[] tmpStart = cstart;
+        cstart = nstart;
+        nstart = tmpStart;
+        position++;
+
+        if (endWithDollar){     // 只在流结束时判断是否接收
+            return;
+        }
+
+        int matched = -1;
+        for (int i = 0; i < clist.size(); i++) {
+            if (program.opcode[clist.get(i)] == Program.MATCH){
+                matched = i;
+                break;
+            }
+        }
+        if (matched >= 0 && (matchStart < 0 || cstart[matched] <= matchStart)){
+            matchStart = cstart[matched];   // 更靠左或者更长的匹配
+            matchEnd = position;
+            lookaheadCount = 0;
+            int keep = matched + 1;         // 起点更靠右的线程不可能再胜出
+            while (keep < clist.size() && cstart[keep] <= matchStart){
+                keep++;
+            }
+            clist.truncate(keep);
+        } else if (matchStart >= 0){
+            if (lookaheadCount == lookahead.length){
+                lookahead = Arrays.copyOf(lookahead, lookaheadCount * 2);
+            }
+            lookahead[lookaheadCount++] = c;
+        }
+
+        if (matchStart >= 0 && (clist.isEmpty() || lookaheadCount >= maxLookahead)){  // 候选匹配不能再变长或者等得太久, 确定下来
+            resolve();
+        }
+    }
+
+    /**
+     * 报告当前候选匹配, 并把终点之后读入的字符放到待重新扫描字符的前面
+     */
+    private void resolve(){
+        listener.onMatch(matchStart, matchEnd);
+        position = matchEnd;
+        matchStart = -1;
+        clist.clear();
+
+        int remaining = replayCount - replayHead;
+        if (lookaheadCount + remaining > replay.length){
+            replay = Arrays.copyOf(replay, Math.max(replay.length * 2, lookaheadCount + remaining));
+        }
+        System.arraycopy(replay, replayHead, replay, lookaheadCount, remaining);
+        System.arraycopy(lookahead, 0, replay, 0, lookaheadCount);
+        replayHead = 0;
+        replayCount = lookaheadCount + remaining;
+        lookaheadCount = 0;
+    }
+
+    private void drainReplay(){
+        while (replayHead < replayCount){
+            consume(replay[replayHead++]);
+        }
+        replayHead = 0;
+        replayCount = 0;
+    }
+
+    /**
+     * 把结点pc及其epsilon闭包加入集合, 已经在集合中的结点保留起点更小的线程, NFA有闭包表时直接加入表中的位置
+     * @param list 状态集合
+     * @param starts 线程起点
+     * @param pc 结点编号
+     * @param start 线程起点
+     */
+    private void addThread(SparseSet list, long[] starts, int pc, long start){
+        if (program.follow != null){
+            for (int k = program.followStart[pc], end = program.followStart[pc + 1]; k < end; k++) {
+                int next = program.follow[k];
+                if (!list.contains(next)){
+                    starts[list.size()] = start;
+                    list.add(next);
+                }
+            }
+            return;
+        }
+        int top = 0;
+        stack[top++] = pc;
+        while (top > 0){
+            pc = stack[--top];
+            if (list.contains(pc)){
+                continue;
+            }
+            starts[list.size()] = start;
+            list.add(pc);
+            if (program.opcode[pc] == Program.EPSILON){
+                if (program.out2[pc] != Program.NONE){
+                    stack[top++] = program.out2[pc];
+                }
+                if (program.out[pc] != Program.NONE){
+                    stack[top++] = program.out[pc];
+                }
+            }
+        }
+    }
+}
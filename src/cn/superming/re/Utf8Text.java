@@ -0,0 +1,114 @@
+package cn.superming.re;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 字符序列的UTF-8编码
+ * UTF8模式下在字符序列中查找时, 状态机在编码后的字节上运行, 得到的字节偏移再换算回字符下标.
+ * 匹配只会在码点的边界开始和结束, 所以换算总是精确的. 单独的代理字符与String.getBytes一样编码为 ?.
+ * 缓冲区可以复用, 连续编码同一个String时直接使用上一次的结果.
+ */
+final class Utf8Text {
+    private CharSequence source;            // 上一次编码的字符序列
+    private byte[] bytes = new byte[64];
+    private int[] charIndex = new int[65];  // 每个字节所属字符的下标, 末尾多一项为字符序列的长度
+    private int length;                     // 编码后的字节数
+    private final ByteSequence sequence = new ByteSequence(null, 0, 0);
+
+    /**
+     * 编码text, text与上一次编码的是同一个String时直接复用结果
+     * @param text
+     * @return 编码后的字节序列, 下一次编码之前有效
+     */
+    ByteSequence encode(CharSequence text){
+        if (text == source && text instanceof String){
+            return sequence;
+        }
+        int textLength = text.length();
+        ensureCapacity(textLength * 3);     // 每个char最多编码为3个字节, 代理对为4个字节
+        int n = 0;
+        for (int i = 0; i < textLength; i++) {
+            char c = text.charAt(i);
+            int index = i;
+            int codePoint = c;
+            if (Character.isHighSurrogate(c) && i + 1 < textLength && Character.isLowSurrogate(text.charAt(i + 1))){
+                codePoint = Character.toCodePoint(c, text.charAt(++i));
+            } else if (Character.isSurrogate(c)){
+                codePoint = '?';
+            }
+
+            if (codePoint < 0x80){
+                bytes[n] = (byte) codePoint;
+                charIndex[n++] = index;
+            } else if (codePoint < 0x800){
+                bytes[n] = (byte) (0xC0 | (codePoint >> 6));
+                charIndex[n++] = index;
+                bytes[n] = (byte) (0x80 | (codePoint & 0x3F));
+                charIndex[n++] = index;
+            } else if (codePoint < 0x10000){
+                bytes[n] = (byte) (0xE0 | (codePoint >> 12));
+                charIndex[n++] = index;
+                bytes[n] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                charIndex[n++] = index;
+                bytes[n] = (byte) (0x80 | (codePoint & 0x3F));
+                charIndex[n++] = index;
+            } else {
+                bytes[n] = (byte) (0xF0 | (codePoint >> 18));
+                charIndex[n++] = index;
+                bytes[n] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                charIndex[n++] = index;
+                bytes[n] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                charIndex[n++] = index;
+                bytes[n] = (byte) (0x80 | (codePoint & 0x3F));
+                charIndex[n++] = index;
+            }
+        }
+        charIndex[n] = textLength;
+        length = n;
+        source = text;
+        return sequence.wrap(ByteBuffer.wrap(bytes), 0, n);
+    }
+
+    /**
+     * 把字符下标换算成字节偏移: 第一个不在该下标之前的字节
+     * @param index 字符下标, 在[0, 字符序列长度]中
+     * @return
+     */
+    int toByteOffset(int index){
+        int low = 0;
+        int high = length;
+        while (low < high){
+            int middle = (low + high) >>> 1;
+            if (charIndex[middle] < index){
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 把字节偏移换算成字符下标
+     * @param offset 码点边界上的字节偏移
+     * @return
+     */
+    int toCharIndex(int offset){
+        return charIndex[offset];
+    }
+
+    /**
+     * 不再引用上一次编码的字符序列
+     */
+    void release(){
+        source = null;
+    }
+
+    private void ensureCapacity(int capacity){
+        if (capacity > bytes.length){
+            int size = Math.max(capacity, bytes.length * 2);
+            bytes = new byte[size];
+            charIndex = new int[size + 1];
+        }
+    }
+}